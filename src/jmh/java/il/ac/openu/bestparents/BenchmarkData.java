@@ -0,0 +1,45 @@
+package il.ac.openu.bestparents;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import weka.core.Instances;
+
+/**
+ * Data sampled from a {@link SyntheticNetwork}, shared by the benchmarks and parameterized by size
+ * and cardinality. The data is generated from a fixed seed, once for each combination of
+ * parameters.
+ *
+ * @author Andrew Kreimer
+ */
+@State(Scope.Benchmark)
+public class BenchmarkData {
+
+  /** Number of instances. */
+  @Param({"10000", "100000"})
+  public int numInstances;
+
+  /** Number of attributes, the class included. */
+  @Param({"20", "100"})
+  public int numAttributes;
+
+  /** Number of values of each attribute. */
+  @Param({"2", "5"})
+  public int arity;
+
+  /** Max number of parents of an attribute in the generating network. */
+  @Param({"2"})
+  public int maxInDegree;
+
+  Instances instances;
+  NominalColumns columns;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    instances =
+        SyntheticNetwork.random(numAttributes, maxInDegree, arity, 1).sample(numInstances, 1);
+    columns = NominalColumns.encode(instances);
+  }
+}
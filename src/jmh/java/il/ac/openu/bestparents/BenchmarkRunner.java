@@ -0,0 +1,28 @@
+package il.ac.openu.bestparents;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which also reports the allocation rate.
+ *
+ * <p>Takes the options of the JMH command line, e.g. a benchmark regex and -p numAttributes=20.
+ *
+ * @author Andrew Kreimer
+ */
+public abstract class BenchmarkRunner {
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args the JMH options
+   * @throws Exception if the options are invalid or a benchmark fails
+   */
+  public static void main(String[] args) throws Exception {
+    var options =
+        new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class);
+    new Runner(options.build()).run();
+  }
+}
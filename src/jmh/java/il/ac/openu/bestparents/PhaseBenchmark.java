@@ -0,0 +1,160 @@
+package il.ac.openu.bestparents;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import weka.classifiers.bayes.BayesNet;
+
+/**
+ * Benchmarks of the phases of a pairwise search, each given the output of the previous one.
+ *
+ * <ul>
+ *   <li>allocate: allocating the tables of all pairs
+ *   <li>count: counting the instances, by the given counting strategy
+ *   <li>score: conditional entropies of all pairs
+ *   <li>rank: the best parents and children of each attribute
+ *   <li>assemble: the network of the given search from the ranking
+ * </ul>
+ *
+ * @author Andrew Kreimer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class PhaseBenchmark {
+
+  /** Counting strategy, a parameter of the count phase only. */
+  @State(Scope.Benchmark)
+  public static class CountStrategy {
+
+    /**
+     * Heap tables, compressed instances, decayed weights, off-heap tables, or heap tables counted
+     * by all processors.
+     */
+    @Param({"heap", "compressed", "decayed", "offHeap", "parallel"})
+    public String strategy;
+  }
+
+  /** Search assembling the network, a parameter of the assemble phase only. */
+  @State(Scope.Benchmark)
+  public static class AssembledSearch {
+
+    /** Simple name of the search class, less Search. */
+    @Param({
+      "BestParents",
+      "BestChildren",
+      "BestParentsAndChildren",
+      "BestParentsAndChildrenRecursive"
+    })
+    public String search;
+  }
+
+  private NominalColumns noInstances;
+  private PairwiseCounts pairwiseCounts;
+  private PairwiseEntropies pairwiseEntropies;
+  private PairwiseRanking pairwiseRanking;
+
+  @Setup(Level.Trial)
+  public void setUp(BenchmarkData data) {
+    noInstances = NominalColumns.encode(data.instances, 0, 0);
+    pairwiseCounts = PairwiseCounts.count(data.columns, 1, PairwiseCounts.DEFAULT_BLOCK_SIZE);
+    pairwiseEntropies = PairwiseEntropies.compute(pairwiseCounts, 1);
+    pairwiseRanking = rank(data);
+  }
+
+  @Benchmark
+  public void allocate(Blackhole blackhole) {
+    try (var empty = PairwiseCounts.count(noInstances, 1, 1)) {
+      blackhole.consume(empty);
+    }
+  }
+
+  @Benchmark
+  public void count(BenchmarkData data, CountStrategy countStrategy, Blackhole blackhole) {
+    var strategy = countStrategy.strategy;
+    var columns = strategy.equals("compressed") ? data.columns.compress() : data.columns;
+    var decayFactor = strategy.equals("decayed") ? 0.999 : 1;
+    var numThreads = strategy.equals("parallel") ? Runtime.getRuntime().availableProcessors() : 1;
+
+    try (var counts =
+        PairwiseCounts.count(
+            columns,
+            decayFactor,
+            strategy.equals("offHeap"),
+            numThreads,
+            PairwiseCounts.DEFAULT_BLOCK_SIZE)) {
+      blackhole.consume(counts);
+    }
+  }
+
+  @Benchmark
+  public PairwiseEntropies score() {
+    return PairwiseEntropies.compute(pairwiseCounts, 1);
+  }
+
+  @Benchmark
+  public PairwiseRanking rank(BenchmarkData data) {
+    var ranking = new PairwiseRanking(data.numAttributes, 2, 2, false);
+    ranking.addAll(pairwiseEntropies);
+
+    return ranking;
+  }
+
+  @Benchmark
+  public BayesNet assemble(BenchmarkData data, AssembledSearch assembledSearch) throws Exception {
+    // an empty network over the attributes, as the search is given it
+    var bayesNet = new BayesNet();
+    bayesNet.m_Instances = data.instances;
+    bayesNet.initStructure();
+
+    switch (assembledSearch.search) {
+      case "BestParents" -> {
+        var search = new BestParentsSearch();
+        search.setMaxNrOfParents(2);
+        search.assemble(bayesNet, data.instances, pairwiseRanking);
+      }
+      case "BestChildren" -> {
+        var search = new BestChildrenSearch();
+        search.setMaxNrOfChildren(2);
+        search.assemble(bayesNet, data.instances, pairwiseRanking);
+      }
+      case "BestParentsAndChildren" -> {
+        var search = new BestParentsAndChildrenSearch();
+        search.setMaxNrOfParents(2);
+        search.setMaxNrOfChildren(2);
+        search.assemble(bayesNet, data.instances, pairwiseRanking);
+      }
+      case "BestParentsAndChildrenRecursive" -> {
+        var search = new BestParentsAndChildrenRecursiveSearch();
+        search.setMaxNrOfParents(2);
+        search.setMaxNrOfChildren(2);
+        search.assemble(bayesNet, data.instances, pairwiseRanking);
+      }
+      default -> throw new IllegalArgumentException("Unknown search: " + assembledSearch.search);
+    }
+
+    return bayesNet;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    pairwiseCounts.close();
+  }
+}
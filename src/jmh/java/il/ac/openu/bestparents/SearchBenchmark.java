@@ -0,0 +1,61 @@
+package il.ac.openu.bestparents;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.bayes.BayesNet;
+
+/**
+ * End-to-end benchmarks of each search: building a network, structure and probabilities, from
+ * instances.
+ *
+ * @author Andrew Kreimer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class SearchBenchmark {
+
+  /** Simple name of the search class. */
+  @Param({
+    "BestParentsSearch",
+    "BestChildrenSearch",
+    "BestParentsAndChildrenSearch",
+    "BestParentsAndChildrenRecursiveSearch",
+    "BestParentsAndChildrenFullListSearch"
+  })
+  public String search;
+
+  private Class<? extends PairwiseSearchAlgorithm> searchClass;
+
+  @Setup(Level.Trial)
+  public void setUp() throws ClassNotFoundException {
+    searchClass =
+        Class.forName(SearchBenchmark.class.getPackageName() + "." + search)
+            .asSubclass(PairwiseSearchAlgorithm.class);
+  }
+
+  @Benchmark
+  public BayesNet buildClassifier(BenchmarkData data) throws Exception {
+    var bayesNet = new BayesNet();
+    bayesNet.setSearchAlgorithm(searchClass.getDeclaredConstructor().newInstance());
+    bayesNet.buildClassifier(data.instances);
+
+    return bayesNet;
+  }
+}
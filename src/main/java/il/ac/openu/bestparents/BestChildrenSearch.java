@@ -1,14 +1,6 @@
 package il.ac.openu.bestparents;
 
-import java.util.AbstractMap;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import weka.classifiers.bayes.BayesNet;
-import weka.classifiers.bayes.net.search.SearchAlgorithm;
-import weka.core.ContingencyTables;
 import weka.core.Instances;
 
 /**
@@ -16,12 +8,11 @@ import weka.core.Instances;
  *
  * @author Andrew Kreimer
  */
-public class BestChildrenSearch extends SearchAlgorithm {
+public class BestChildrenSearch extends PairwiseSearchAlgorithm {
 
   private static final long serialVersionUID = 1032285588625105530L;
 
   private int maxNrOfChildren;
-  private double[][][][] attributeMatrix = {};
 
   /**
    * Performs path search.
@@ -30,121 +21,82 @@ public class BestChildrenSearch extends SearchAlgorithm {
    * @param instances the data to work with
    */
   @Override
-  public void search(BayesNet bayesNet, Instances instances) {
-    // contingency table for each attribute X attribute matrix
-    attributeMatrix = new double[instances.numAttributes()][instances.numAttributes()][][];
+  protected void searchStructure(BayesNet bayesNet, Instances instances) {
+    // count instantiations and rank conditional entropies of contingency tables: for each
+    // attribute with index i, best children by entropy, bounded by maxNrOfChildren
+    var ranking = rank(instances, 0, getMaxNrOfChildren());
 
-    // allocate
-    allocate(instances);
-
-    // count instantiations
-    count(instances);
+    // build network
+    assemble(bayesNet, instances, ranking);
+  }
 
-    // for each attribute with index i: map<entropy, child index>, keeping the map sorted
-    var attributeBestChildrenList = new ArrayList<SortedMap<Double, Integer>>();
+  /**
+   * Assembles network.
+   *
+   * @param bayesNet the network
+   * @param instances the data to work with
+   * @param ranking the best children of each attribute
+   */
+  void assemble(BayesNet bayesNet, Instances instances, PairwiseRanking ranking) {
+    var event = beginAssembly(bayesNet, instances);
+    var degreeIndex = DegreeIndex.of(bayesNet);
+    var attributeBestChildrenList = ranking.getBestChildren();
 
-    // allocate
     for (var i = 0; i < instances.numAttributes(); i++) {
-      var tmpTreeMap = new TreeMap<Double, Integer>();
-      attributeBestChildrenList.add(i, tmpTreeMap);
+      var candidates = attributeBestChildrenList.get(i);
+      var numOfAddedRules = addBestChildren(bayesNet, instances, degreeIndex, i, candidates, 0);
+
+      // the next best children were not kept: rank all of them if any attribute can still be
+      // added, the candidates kept being rejected again as degrees only grow
+      if (numOfAddedRules < getMaxNrOfChildren()
+          && candidates.size() == candidates.capacity()
+          && canAddAnyChild(bayesNet, degreeIndex, i)) {
+        candidates = rankAllChildren(ranking, i);
+        addBestChildren(bayesNet, instances, degreeIndex, i, candidates, numOfAddedRules);
+      }
     }
 
-    // map<entropy, rule(string)>
-    var entropyRuleMap = new TreeMap<Double, String>();
-
-    // map<entropy, rule(attributeParentIndex -> attributeChildIndex)>
-    var entropyParentToChildMap = new TreeMap<Double, Entry<Integer, Integer>>();
-
-    // calculate conditional entropy for contingency tables
-    calculateContingencyTables(
-        instances, attributeBestChildrenList, entropyRuleMap, entropyParentToChildMap);
-
-    // build network
-    assembleNetwork(bayesNet, instances, attributeBestChildrenList);
+    endAssembly(event, bayesNet);
   }
 
-  /** Assembles network. */
-  private void assembleNetwork(
+  /** Adds children of attribute i from its candidates, returning the number of children added. */
+  private int addBestChildren(
       BayesNet bayesNet,
       Instances instances,
-      List<SortedMap<Double, Integer>> attributeBestChildrenList) {
-    for (var i = 0; i < instances.numAttributes(); i++) {
-      var tmpTreeMap = attributeBestChildrenList.get(i);
-      var numOfAddedRules = 0;
-
-      for (Entry<Double, Integer> entry : tmpTreeMap.entrySet()) {
-        int value = entry.getValue();
-
-        var numOfParentsForCurrentChild = bayesNet.getParentSet(value).getNrOfParents();
-        if (numOfAddedRules < getMaxNrOfChildren()
-            && numOfParentsForCurrentChild < getMaxNrOfChildren()
-            && numOfAddedRules < tmpTreeMap.size()
-            && BnUtils.countNumOfChildren(bayesNet, instances, i) < getMaxNrOfChildren()
-            && !bayesNet.getParentSet(value).contains(i)) {
-          bayesNet.getParentSet(value).addParent(i, instances);
-          numOfAddedRules++;
-        }
+      DegreeIndex degreeIndex,
+      int i,
+      CandidateList candidates,
+      int numOfAddedRules) {
+    for (var k = 0; k < candidates.size(); k++) {
+      var value = candidates.attribute(k);
+
+      if (numOfAddedRules < getMaxNrOfChildren() && canAddChild(bayesNet, degreeIndex, i, value)) {
+        degreeIndex.addParent(value, i, instances);
+        arcAdded();
+        numOfAddedRules++;
       }
     }
-  }
 
-  /** Calculates conditional entropies. */
-  private void calculateContingencyTables(
-      Instances instances,
-      List<SortedMap<Double, Integer>> attributeBestChildrenList,
-      SortedMap<Double, String> entropyRuleMap,
-      SortedMap<Double, Entry<Integer, Integer>> entropyParentToChildMap) {
-    for (var i = 0; i < instances.numAttributes(); i++) {
-      for (var j = 0; j < i; j++) {
-        var entropyConditionedOnRows =
-            ContingencyTables.entropyConditionedOnRows(attributeMatrix[i][j]);
-        var entropyConditionedOnColumns =
-            ContingencyTables.entropyConditionedOnColumns(attributeMatrix[i][j]);
-
-        var lowestEntropy =
-            (entropyConditionedOnRows < entropyConditionedOnColumns)
-                ? entropyConditionedOnRows
-                : entropyConditionedOnColumns;
-
-        // save current rule
-        var arc =
-            (entropyConditionedOnRows < entropyConditionedOnColumns)
-                ? instances.attribute(i).name() + " -> " + instances.attribute(j).name()
-                : instances.attribute(j).name() + " -> " + instances.attribute(i).name();
-        entropyRuleMap.put(lowestEntropy, arc);
-
-        if (entropyConditionedOnRows < entropyConditionedOnColumns) {
-          attributeBestChildrenList.get(i).put(lowestEntropy, j);
-          entropyParentToChildMap.put(lowestEntropy, new AbstractMap.SimpleEntry<>(i, j));
-        } else {
-          attributeBestChildrenList.get(j).put(lowestEntropy, i);
-          entropyParentToChildMap.put(lowestEntropy, new AbstractMap.SimpleEntry<>(j, i));
-        }
-      }
-    }
+    return numOfAddedRules;
   }
 
-  /** Counts occurrences. */
-  private void count(Instances instances) {
-    for (var n = 0; n < instances.numInstances(); n++) {
-      for (var i = 0; i < instances.numAttributes(); i++) {
-        for (var j = 0; j < i; j++) {
-          var iAttrIndex = (int) instances.instance(n).value(i);
-          var jAttrIndex = (int) instances.instance(n).value(j);
-          attributeMatrix[i][j][iAttrIndex][jAttrIndex]++;
-        }
-      }
-    }
+  /** Checks whether value can be added as a child of attribute i. */
+  private boolean canAddChild(BayesNet bayesNet, DegreeIndex degreeIndex, int i, int value) {
+    var numOfParentsForCurrentChild = degreeIndex.numParents(value);
+    return numOfParentsForCurrentChild < getMaxNrOfChildren()
+        && degreeIndex.numChildren(i) < getMaxNrOfChildren()
+        && !bayesNet.getParentSet(value).contains(i);
   }
 
-  /** Allocates memory. */
-  private void allocate(Instances instances) {
-    for (var j = 0; j < instances.numAttributes(); j++) {
-      for (var k = 0; k < j; k++) {
-        attributeMatrix[j][k] =
-            new double[instances.attribute(j).numValues()][instances.attribute(k).numValues()];
+  /** Checks whether any other attribute can be added as a child of attribute i. */
+  private boolean canAddAnyChild(BayesNet bayesNet, DegreeIndex degreeIndex, int i) {
+    for (var value = 0; value < bayesNet.getNrOfNodes(); value++) {
+      if (value != i && canAddChild(bayesNet, degreeIndex, i, value)) {
+        return true;
       }
     }
+
+    return false;
   }
 
   /** Sets the max number of children. */
@@ -1,14 +1,10 @@
 package il.ac.openu.bestparents;
 
 import java.util.AbstractMap;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import weka.classifiers.bayes.BayesNet;
-import weka.classifiers.bayes.net.search.SearchAlgorithm;
-import weka.core.ContingencyTables;
 import weka.core.Instances;
 
 /**
@@ -16,12 +12,12 @@ import weka.core.Instances;
  *
  * @author Andrew Kreimer
  */
-public class BestParentsAndChildrenFullListSearch extends SearchAlgorithm {
+public class BestParentsAndChildrenFullListSearch extends PairwiseSearchAlgorithm {
 
   private static final long serialVersionUID = -6875216741076169820L;
 
   private int maxNrOfChildren;
-  private double[][][][] attributeMatrix = {};
+  private int numTileCandidates = 8;
 
   /**
    * Performs path search.
@@ -30,54 +26,44 @@ public class BestParentsAndChildrenFullListSearch extends SearchAlgorithm {
    * @param instances the data to work with
    */
   @Override
-  public void search(BayesNet bayesNet, Instances instances) {
-    // contingency table for each attribute X attribute matrix
-    attributeMatrix = new double[instances.numAttributes()][instances.numAttributes()][][];
-
-    // allocate
-    allocate(instances);
-
-    // count instantiations
-    count(instances);
-
-    // for each attribute with index i: map<entropy, parent index>, keeping the map sorted
-    var attributeBestParentsList = new ArrayList<SortedMap<Double, Integer>>();
-    var attributeBestChildrenList = new ArrayList<SortedMap<Double, Integer>>();
-
-    // allocate
-    for (var i = 0; i < instances.numAttributes(); i++) {
-      TreeMap<Double, Integer> tmpTreeMap = null;
-      tmpTreeMap = new TreeMap<>();
-      attributeBestParentsList.add(i, tmpTreeMap);
-      tmpTreeMap = new TreeMap<>();
-      attributeBestChildrenList.add(i, tmpTreeMap);
-    }
-
-    // map<entropy, rule(string)>
-    var entropyRuleMap = new TreeMap<Double, String>();
-
-    // map<entropy, rule(attributeChildIndex <- attributeParentIndex)>
-    var entropyChildFromParentMap = new TreeMap<Double, Entry<Integer, Integer>>();
-
-    // map<entropy, rule(attributeParentIndex -> attributeChildIndex)>
-    var entropyParentToChildMap = new TreeMap<Double, Entry<Integer, Integer>>();
-
+  protected void searchStructure(BayesNet bayesNet, Instances instances) {
     // Idea 1
     // map<entropy, addParent(whichAttribute, toAdd)>
     var entropyBestRuleMap = new TreeMap<Double, Entry<Integer, Integer>>();
 
-    // calculate conditional entropy for contingency tables
-    calculateContingencyTables(
-        instances,
-        attributeBestParentsList,
-        attributeBestChildrenList,
-        entropyRuleMap,
-        entropyChildFromParentMap,
-        entropyParentToChildMap,
-        entropyBestRuleMap);
+    if (isTiled()) {
+      // too wide for all rules, the best parents of each attribute only
+      var ranking = rankTilesBothDirections(instances, numTileCandidates);
+      collectBestRules(instances, ranking, entropyBestRuleMap);
+    } else {
+      // contingency table for each attribute X attribute matrix, count instantiations, and
+      // conditional entropies for each pair
+      var pairwiseEntropies = score(instances);
+
+      // rank conditional entropies of contingency tables
+      var rankEvent = beginPhase("rank", instances.numAttributes(), instances.numInstances());
+      rankEvent.numPairs =
+          calculateContingencyTables(instances, pairwiseEntropies, entropyBestRuleMap);
+      rankEvent.commit();
+    }
+
+    assemble(bayesNet, instances, entropyBestRuleMap);
+  }
 
+  /**
+   * Adds parents from the full list of rules, each attribute in one rule at most.
+   *
+   * @param bayesNet the network
+   * @param instances the data to work with
+   * @param entropyBestRuleMap the rules, child and parent, by entropy
+   */
+  void assemble(
+      BayesNet bayesNet,
+      Instances instances,
+      SortedMap<Double, Entry<Integer, Integer>> entropyBestRuleMap) {
     // Greedy algorithm: add parents from the full list of rules (sorted)
     // if true not usable, if false (default) usable
+    var event = beginAssembly(bayesNet, instances);
     var blackList = new boolean[instances.numAttributes()];
 
     for (Entry<Double, Entry<Integer, Integer>> entry : entropyBestRuleMap.entrySet()) {
@@ -86,90 +72,85 @@ public class BestParentsAndChildrenFullListSearch extends SearchAlgorithm {
       // add parents
       if (!blackList[value.getKey()] && !blackList[value.getValue()]) {
         bayesNet.getParentSet(value.getKey()).addParent(value.getValue(), instances);
+        arcAdded();
         blackList[value.getKey()] = true;
         blackList[value.getValue()] = true;
       }
     }
+
+    endAssembly(event, bayesNet);
   }
 
-  /** Calculate conditional entropies. */
-  private void calculateContingencyTables(
+  /**
+   * Calculate conditional entropies of the scored rows, the last row first and further rows till
+   * the search stops, all of them if it stopped before. Walked backwards, the first rule of an
+   * entropy is kept, as the last one is walking forwards.
+   *
+   * @return the number of pairs ranked
+   */
+  private long calculateContingencyTables(
       Instances instances,
-      List<SortedMap<Double, Integer>> attributeBestParentsList,
-      List<SortedMap<Double, Integer>> attributeBestChildrenList,
-      SortedMap<Double, String> entropyRuleMap,
-      SortedMap<Double, Entry<Integer, Integer>> entropyChildFromParentMap,
-      SortedMap<Double, Entry<Integer, Integer>> entropyParentToChildMap,
+      PairwiseEntropies pairwiseEntropies,
       SortedMap<Double, Entry<Integer, Integer>> entropyBestRuleMap) {
-    for (var i = 0; i < instances.numAttributes(); i++) {
-      for (var j = 0; j < i; j++) {
-        var entropyConditionedOnRows =
-            ContingencyTables.entropyConditionedOnRows(attributeMatrix[i][j]);
-        var entropyConditionedOnColumns =
-            ContingencyTables.entropyConditionedOnColumns(attributeMatrix[i][j]);
-
-        var lowestEntropy =
-            (entropyConditionedOnRows < entropyConditionedOnColumns)
-                ? entropyConditionedOnRows
-                : entropyConditionedOnColumns;
-
-        // save current rule
-        var arc =
-            (entropyConditionedOnRows < entropyConditionedOnColumns)
-                ? instances.attribute(j).name() + " <- " + instances.attribute(i).name()
-                : instances.attribute(i).name() + " <- " + instances.attribute(j).name();
-        entropyRuleMap.put(lowestEntropy, arc);
+    var last = instances.numAttributes() - 1;
+    var numPairs = 0L;
+
+    // stopped while counting or scoring: the rows scored so far are all ranked
+    var stoppedBefore = isStopped();
+
+    for (var i = last;
+        i > 0 && pairwiseEntropies.isScored(i) && (i == last || stoppedBefore || !isStopped());
+        i--) {
+      numPairs += i;
+
+      for (var j = i - 1; j >= 0; j--) {
+        var entropyConditionedOnRows = pairwiseEntropies.conditionedOnRows(i, j);
+        var entropyConditionedOnColumns = pairwiseEntropies.conditionedOnColumns(i, j);
 
         // Idea 1
-        entropyBestRuleMap.put(entropyConditionedOnRows, new AbstractMap.SimpleEntry<>(j, i));
-        entropyBestRuleMap.put(entropyConditionedOnColumns, new AbstractMap.SimpleEntry<>(i, j));
-
-        if (entropyConditionedOnRows < entropyConditionedOnColumns) {
-          attributeBestParentsList.get(j).put(lowestEntropy, i);
-          attributeBestChildrenList.get(i).put(lowestEntropy, j);
-          entropyChildFromParentMap.put(lowestEntropy, new AbstractMap.SimpleEntry<>(j, i));
-          entropyParentToChildMap.put(lowestEntropy, new AbstractMap.SimpleEntry<>(i, j));
-        } else {
-          attributeBestParentsList.get(i).put(lowestEntropy, j);
-          attributeBestChildrenList.get(j).put(lowestEntropy, i);
-          entropyChildFromParentMap.put(lowestEntropy, new AbstractMap.SimpleEntry<>(i, j));
-          entropyParentToChildMap.put(lowestEntropy, new AbstractMap.SimpleEntry<>(j, i));
-        }
+        entropyBestRuleMap.putIfAbsent(
+            entropyConditionedOnColumns, new AbstractMap.SimpleEntry<>(i, j));
+        entropyBestRuleMap.putIfAbsent(
+            entropyConditionedOnRows, new AbstractMap.SimpleEntry<>(j, i));
       }
     }
-  }
 
-  /** Counts occurrences. */
-  private void count(Instances instances) {
-    for (var n = 0; n < instances.numInstances(); n++) {
-      for (var i = 0; i < instances.numAttributes(); i++) {
-        for (var j = 0; j < i; j++) {
-          var iAttrIndex = (int) instances.instance(n).value(i);
-          var jAttrIndex = (int) instances.instance(n).value(j);
-          attributeMatrix[i][j][iAttrIndex][jAttrIndex]++;
-        }
-      }
-    }
+    return numPairs;
   }
 
-  /** Allocates memory. */
-  private void allocate(Instances instances) {
-    for (var j = 0; j < instances.numAttributes(); j++) {
-      for (var k = 0; k < j; k++) {
-        attributeMatrix[j][k] =
-            new double[instances.attribute(j).numValues()][instances.attribute(k).numValues()];
+  /**
+   * Collects the rules of the best parents of each attribute. Of the rules of an entropy, the one
+   * {@link #calculateContingencyTables} walks first is kept, so both agree unless candidates are
+   * cut.
+   */
+  private void collectBestRules(
+      Instances instances,
+      PairwiseRanking ranking,
+      SortedMap<Double, Entry<Integer, Integer>> entropyBestRuleMap) {
+    for (var i = 0; i < instances.numAttributes(); i++) {
+      var candidates = ranking.getBestParents().get(i);
+
+      for (var k = 0; k < candidates.size(); k++) {
+        entropyBestRuleMap.merge(
+            candidates.entropy(k),
+            new AbstractMap.SimpleEntry<>(i, candidates.attribute(k)),
+            (kept, rule) -> walkOrder(rule) < walkOrder(kept) ? rule : kept);
       }
     }
   }
 
-  /** Sets the max number of parents. */
-  public void setMaxNrOfParents(int nMaxNrOfParents) {
-    m_nMaxNrOfParents = nMaxNrOfParents;
-  }
+  /**
+   * Gets the position of a rule, child and parent, in the walk of {@link
+   * #calculateContingencyTables}: pairs from the last row backwards, the parent of the row
+   * attribute first.
+   */
+  private static long walkOrder(Entry<Integer, Integer> rule) {
+    int child = rule.getKey();
+    int parent = rule.getValue();
+    var row = Math.max(child, parent);
+    var column = Math.min(child, parent);
 
-  /** Gets the max number of parents. */
-  public int getMaxNrOfParents() {
-    return m_nMaxNrOfParents;
+    return -2 * (((long) row << 32) + column) + (child == row ? 0 : 1);
   }
 
   /** Sets the max number of children. */
@@ -181,4 +162,22 @@ public class BestParentsAndChildrenFullListSearch extends SearchAlgorithm {
   public int getMaxNrOfChildren() {
     return maxNrOfChildren;
   }
+
+  /**
+   * Sets the number of best parents kept for each attribute when ranking tile by tile under a
+   * memory budget, in place of the full list of rules.
+   */
+  public void setNumTileCandidates(int numTileCandidates) {
+    if (numTileCandidates < 1) {
+      throw new IllegalArgumentException(
+          "Number of tile candidates must be positive: " + numTileCandidates);
+    }
+
+    this.numTileCandidates = numTileCandidates;
+  }
+
+  /** Gets the number of best parents kept for each attribute when ranking tile by tile. */
+  public int getNumTileCandidates() {
+    return numTileCandidates;
+  }
 }
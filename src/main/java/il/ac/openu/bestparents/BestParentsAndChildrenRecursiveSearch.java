@@ -1,15 +1,12 @@
 package il.ac.openu.bestparents;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Queue;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import weka.classifiers.bayes.BayesNet;
-import weka.classifiers.bayes.net.search.SearchAlgorithm;
-import weka.core.ContingencyTables;
 import weka.core.Instances;
 
 /**
@@ -17,18 +14,16 @@ import weka.core.Instances;
  *
  * @author Andrew Kreimer
  */
-public class BestParentsAndChildrenRecursiveSearch extends SearchAlgorithm {
+public class BestParentsAndChildrenRecursiveSearch extends PairwiseSearchAlgorithm {
 
   private static final long serialVersionUID = 2467629575499347683L;
 
   private int maxNrOfChildren;
-  private double[][][][] attributeMatrix;
+  private int numStarts = 1;
 
-  private List<TreeMap<Double, Integer>> attributeBestParentsList = Collections.emptyList();
-  private List<TreeMap<Double, Integer>> attributeBestChildrenList = Collections.emptyList();
+  private List<CandidateList> attributeBestParentsList = Collections.emptyList();
+  private List<CandidateList> attributeBestChildrenList = Collections.emptyList();
 
-  private BayesNet bayesNet;
-  private Instances instances;
   private boolean[] blackList;
 
   /**
@@ -38,88 +33,108 @@ public class BestParentsAndChildrenRecursiveSearch extends SearchAlgorithm {
    * @param instances the data to work with
    */
   @Override
-  public void search(BayesNet bayesNet, Instances instances) {
-    // contingency table for each attribute X attribute matrix
-    attributeMatrix = new double[instances.numAttributes()][instances.numAttributes()][][];
-
-    // allocate
-    allocate(instances);
-
-    // count instantiations
-    count(instances);
-
-    // for each attribute with index i: map<entropy, parent index>, keeping
-    // the map sorted
-    attributeBestParentsList = new ArrayList<>();
-    attributeBestChildrenList = new ArrayList<>();
-
-    // allocate
-    for (var i = 0; i < instances.numAttributes(); i++) {
-      TreeMap<Double, Integer> tmpTreeMap = null;
-      tmpTreeMap = new TreeMap<>();
-      attributeBestParentsList.add(i, tmpTreeMap);
-      tmpTreeMap = new TreeMap<>();
-      attributeBestChildrenList.add(i, tmpTreeMap);
-    }
+  protected void searchStructure(BayesNet bayesNet, Instances instances) {
+    if (numStarts == 1 || isStopped()) {
+      // count instantiations and rank conditional entropies of contingency tables: for each
+      // attribute with index i, best parents and children by entropy
+      var ranking = rank(instances, getMaxNrOfParents(), getMaxNrOfChildren());
 
-    // calculate conditional entropy for contingency tables
-    for (var i = 0; i < instances.numAttributes(); i++) {
-      for (var j = 0; j < i; j++) {
-        var entropyConditionedOnRows =
-            ContingencyTables.entropyConditionedOnRows(attributeMatrix[i][j]);
-        var entropyConditionedOnColumns =
-            ContingencyTables.entropyConditionedOnColumns(attributeMatrix[i][j]);
-
-        var lowestEntropy =
-            (entropyConditionedOnRows < entropyConditionedOnColumns)
-                ? entropyConditionedOnRows
-                : entropyConditionedOnColumns;
-
-        // save current rule
-        if (entropyConditionedOnRows < entropyConditionedOnColumns) {
-          attributeBestParentsList.get(j).put(lowestEntropy, i);
-          attributeBestChildrenList.get(i).put(lowestEntropy, j);
-        } else {
-          attributeBestParentsList.get(i).put(lowestEntropy, j);
-          attributeBestChildrenList.get(j).put(lowestEntropy, i);
-        }
-      }
+      assemble(bayesNet, instances, ranking);
+    } else {
+      searchMultiStart(bayesNet, instances);
     }
+  }
+
+  /**
+   * Expands from the last attribute, usually the class, a single start.
+   *
+   * @param bayesNet the network
+   * @param instances the data to work with
+   * @param ranking the best parents and children of each attribute
+   */
+  void assemble(BayesNet bayesNet, Instances instances, PairwiseRanking ranking) {
+    attributeBestParentsList = ranking.getBestParents();
+    attributeBestChildrenList = ranking.getBestChildren();
 
+    // expanded even if the search stopped early: the pairs ranked so far give a partial
+    // structure, each attribute joining it once, in time linear in the candidates
+    var event = beginAssembly(bayesNet, instances);
     addBestParentsAndChildrenIterative(bayesNet, instances, instances.numAttributes() - 1);
+    endAssembly(event, bayesNet);
   }
 
-  /** Counts occurrences. */
-  private void count(Instances instances) {
-    for (var n = 0; n < instances.numInstances(); n++) {
-      for (var i = 0; i < instances.numAttributes(); i++) {
-        for (var j = 0; j < i; j++) {
-          var iAttrIndex = (int) instances.instance(n).value(i);
-          var jAttrIndex = (int) instances.instance(n).value(j);
-          attributeMatrix[i][j][iAttrIndex][jAttrIndex]++;
-        }
-      }
+  /**
+   * Expands from several starting attributes in parallel, all from the same counts, and keeps the
+   * network with the highest BIC. Each start only records the arcs it adds to the network, and the
+   * arcs of the best start are added at the end. Starts after the first are skipped once the search
+   * stops.
+   */
+  private void searchMultiStart(BayesNet bayesNet, Instances instances) {
+    if (isTiled()) {
+      throw new IllegalStateException(
+          "Multi-start scores networks by the entropies of all pairs, set no memory budget");
     }
-  }
 
-  /** Allocates memory. */
-  private void allocate(Instances instances) {
-    for (var j = 0; j < instances.numAttributes(); j++) {
-      for (var k = 0; k < j; k++) {
-        attributeMatrix[j][k] =
-            new double[instances.attribute(j).numValues()][instances.attribute(k).numValues()];
-      }
+    var pairwiseEntropies = score(instances);
+    var ranking = rank(pairwiseEntropies, getMaxNrOfParents(), getMaxNrOfChildren());
+    attributeBestParentsList = ranking.getBestParents();
+    attributeBestChildrenList = ranking.getBestChildren();
+
+    var event = beginAssembly(bayesNet, instances);
+    var starts = startingAttributes(instances.numAttributes());
+    var network = new NetworkEntropy(bayesNet, instances, pairwiseEntropies);
+    var task = new StartTask(this, network, instances, starts, 0, starts.length);
+    Expansion best;
+
+    // in a pool of its own even for one thread, the subtasks would be forked to the common pool
+    try (var pool = new ForkJoinPool(Math.max(1, getNumThreads()))) {
+      best = pool.invoke(task);
     }
+
+    addArcs(best, bayesNet, instances);
+    endAssembly(event, bayesNet);
   }
 
-  /** Sets the max number of parents. */
-  public void setMaxNrOfParents(int nMaxNrOfParents) {
-    m_nMaxNrOfParents = nMaxNrOfParents;
+  /**
+   * Orders the starting attributes: the last attribute, usually the class, then the others by the
+   * entropy of their best candidate, lowest first.
+   */
+  private int[] startingAttributes(int numAttributes) {
+    var others = new ArrayList<Integer>(numAttributes - 1);
+
+    for (var i = 0; i < numAttributes - 1; i++) {
+      others.add(i);
+    }
+
+    others.sort(
+        Comparator.comparingDouble(
+                (Integer i) ->
+                    Math.min(
+                        attributeBestParentsList.get(i).bestEntropy(),
+                        attributeBestChildrenList.get(i).bestEntropy()))
+            .thenComparingInt(i -> i));
+
+    var starts = new int[numStarts == 0 ? numAttributes : Math.min(numStarts, numAttributes)];
+    starts[0] = numAttributes - 1;
+
+    for (var k = 1; k < starts.length; k++) {
+      starts[k] = others.get(k - 1);
+    }
+
+    return starts;
   }
 
-  /** Gets the max number of parents. */
-  public int getMaxNrOfParents() {
-    return m_nMaxNrOfParents;
+  /** Expands from a starting attribute over a network left as is, scoring the arcs it adds. */
+  private Expansion expand(NetworkEntropy network, Instances instances, int startingAttribute) {
+    var expansion = new Expansion(instances.numAttributes());
+    expand(
+        network.bayesNet,
+        instances,
+        new boolean[instances.numAttributes()],
+        startingAttribute,
+        expansion);
+    expansion.score = network.bic(expansion);
+    return expansion;
   }
 
   /** Sets the max number of children. */
@@ -133,107 +148,21 @@ public class BestParentsAndChildrenRecursiveSearch extends SearchAlgorithm {
   }
 
   /**
-   * Adds nodes.
-   *
-   * <p>Recursive algorithm: start with class by adding best parent and child, expand for child and
-   * parent the same algorithm till no more attributes left.
+   * Sets the number of starting attributes expanded in parallel from the same counts, the best
+   * network by BIC kept; 1 for the last attribute only, 0 for all attributes. More than one start
+   * scores the entropies of all pairs at once, so it takes no memory budget.
    */
-  private void addBestParentsAndChildren(BayesNet bayesNet, Instances instances, int i) {
-    this.bayesNet = bayesNet;
-    this.instances = instances;
-
-    var tmpBestChildrenMap = attributeBestChildrenList.get(i);
-    var tmpBestParentsMap = attributeBestParentsList.get(i);
-
-    var bestChildKey = Double.POSITIVE_INFINITY; // +infinity
-    var bestParentKey = Double.POSITIVE_INFINITY; // +infinity
-
-    if (tmpBestChildrenMap.keySet().toArray().length != 0) {
-      bestChildKey = (double) tmpBestChildrenMap.keySet().toArray()[0];
+  public void setNumStarts(int numStarts) {
+    if (numStarts < 0) {
+      throw new IllegalArgumentException("Number of starts must not be negative: " + numStarts);
     }
 
-    if (tmpBestParentsMap.keySet().toArray().length != 0) {
-      bestParentKey = (double) tmpBestParentsMap.keySet().toArray()[0];
-    }
-
-    var bestChild = tmpBestChildrenMap.get(bestChildKey);
-    var bestParent = tmpBestParentsMap.get(bestParentKey);
-
-    var expandToChild = false;
-    var expandToParent = false;
-
-    // order matters, best child or parent could be stolen because of
-    // execution order!
-    var path = new PathData();
-    path.setI(i);
-    path.setTmpBestChildrenMap(tmpBestChildrenMap);
-    path.setTmpBestParentsMap(tmpBestParentsMap);
-    path.setBestChildKey(bestChildKey);
-    path.setBestParentKey(bestParentKey);
-    path.setBestChild(bestChild);
-    path.setBestParent(bestParent);
-    path.setExpandToChild(expandToChild);
-    path.setExpandToParent(expandToParent);
-
-    if (bestChildKey < bestParentKey) {
-      expandChildPath(path);
-    } else {
-      expandParentPath(path);
-    }
+    this.numStarts = numStarts;
   }
 
-  /** Expands parent's path. */
-  private void expandParentPath(PathData path) {
-    var expandToParent = path.isExpandToParent();
-    var expandToChild = path.isExpandToChild();
-    if (path.getBestParent() != null && !blackList[path.getBestParent()]) {
-      bayesNet.getParentSet(path.getI()).addParent(path.getBestParent(), instances);
-      blackList[path.getBestParent()] = true;
-      expandToParent = true;
-      path.getTmpBestParentsMap().remove(path.getBestParentKey());
-    }
-
-    if (path.getBestChild() != null && !blackList[path.getBestChild()]) {
-      bayesNet.getParentSet(path.getBestChild()).addParent(path.getI(), instances);
-      blackList[path.getBestChild()] = true;
-      expandToChild = true;
-      path.getTmpBestChildrenMap().remove(path.getBestChildKey());
-    }
-
-    if (expandToParent) {
-      addBestParentsAndChildren(bayesNet, instances, path.getBestParent());
-    }
-
-    if (expandToChild) {
-      addBestParentsAndChildren(bayesNet, instances, path.getBestChild());
-    }
-  }
-
-  /** Expands child's path. */
-  private void expandChildPath(PathData path) {
-    var expandToParent = path.isExpandToParent();
-    var expandToChild = path.isExpandToChild();
-    if (path.getBestChild() != null && !blackList[path.getBestChild()]) {
-      bayesNet.getParentSet(path.getBestChild()).addParent(path.getI(), instances);
-      blackList[path.getBestChild()] = true;
-      expandToChild = true;
-      path.getTmpBestChildrenMap().remove(path.getBestChildKey());
-    }
-
-    if (path.getBestParent() != null && !blackList[path.getBestParent()]) {
-      bayesNet.getParentSet(path.getI()).addParent(path.getBestParent(), instances);
-      blackList[path.getBestParent()] = true;
-      expandToParent = true;
-      path.getTmpBestParentsMap().remove(path.getBestParentKey());
-    }
-
-    if (expandToChild) {
-      addBestParentsAndChildren(bayesNet, instances, path.getBestChild());
-    }
-
-    if (expandToParent) {
-      addBestParentsAndChildren(bayesNet, instances, path.getBestParent());
-    }
+  /** Gets the number of starting attributes, 0 for all attributes. */
+  public int getNumStarts() {
+    return numStarts;
   }
 
   /**
@@ -241,21 +170,41 @@ public class BestParentsAndChildrenRecursiveSearch extends SearchAlgorithm {
    *
    * <p>Iterative algorithm: start with class by adding best parent and child, expand for child and
    * parent the same algorithm till no more attributes left. Use queue instead of recursive
-   * expansion.
+   * expansion, allocating nothing per step.
    */
   public void addBestParentsAndChildrenIterative(
       BayesNet bayesNet, Instances instances, int startingAttribute) {
+    blackList = new boolean[instances.numAttributes()];
+    var expansion = new Expansion(instances.numAttributes());
+    expand(bayesNet, instances, blackList, startingAttribute, expansion);
+    addArcs(expansion, bayesNet, instances);
+  }
+
+  /** Adds the arcs of an expansion to the network. */
+  private void addArcs(Expansion expansion, BayesNet bayesNet, Instances instances) {
+    for (var k = 0; k < expansion.numArcs; k++) {
+      bayesNet.getParentSet(expansion.children[k]).addParent(expansion.parents[k], instances);
+      arcAdded();
+    }
+  }
+
+  /**
+   * Expands from a starting attribute, recording the arcs to add to the network. Each attribute
+   * joins once, by a single arc to an attribute joined before, so the network is only read.
+   */
+  private void expand(
+      BayesNet bayesNet,
+      Instances instances,
+      boolean[] blackList,
+      int startingAttribute,
+      Expansion expansion) {
     // keeping the expansion order is important, expand to the lowest
     // conditional entropies first
-    var expansionOrder = new TreeMap<Double, Integer>();
+    var queue = new ExpansionQueue(instances.numAttributes());
 
     // blackList: mark Class as used
-    blackList = new boolean[instances.numAttributes()];
     blackList[startingAttribute] = true;
 
-    // expansion queue
-    Queue<Integer> queue = new ArrayDeque<>();
-
     // start with class
     queue.add(startingAttribute);
 
@@ -266,16 +215,14 @@ public class BestParentsAndChildrenRecursiveSearch extends SearchAlgorithm {
       blackList[attribute] = true;
 
       // add best parents
-      addBestParents(bayesNet, instances, expansionOrder, blackList, attribute);
+      addBestParents(expansion, queue, blackList, attribute);
 
       // add best children
-      addBestChildren(bayesNet, instances, expansionOrder, blackList, attribute);
+      addBestChildren(bayesNet, expansion, queue, blackList, attribute);
 
       // if queue is empty, proceed with expansion by order
       if (queue.isEmpty()) {
-        queue = new ArrayDeque<>();
-        queue.addAll(expansionOrder.values());
-        expansionOrder = new TreeMap<>();
+        queue.nextWave();
       }
     }
   }
@@ -283,25 +230,21 @@ public class BestParentsAndChildrenRecursiveSearch extends SearchAlgorithm {
   /** Adds best children. */
   private void addBestChildren(
       BayesNet bayesNet,
-      Instances instances,
-      SortedMap<Double, Integer> expansionOrder,
+      Expansion expansion,
+      ExpansionQueue queue,
       boolean[] blackList,
-      Integer attribute) {
-    for (var i = 0; i < getMaxNrOfChildren(); i++) {
-      var arr = attributeBestChildrenList.get(attribute).keySet().toArray();
-
-      // if there are rules
-      if (arr.length == 0) {
-        break;
-      }
-
-      var key = (Double) arr[i];
-      var val = attributeBestChildrenList.get(attribute).get(key);
-
-      if (i < arr.length && !blackList[val]
-      /* && bayesNet.getParentSet(val).getNrOfParents() < getMaxNrOfParents() */ ) {
-        bayesNet.getParentSet(val).addParent(i, instances);
-        expansionOrder.put(key, val);
+      int attribute) {
+    var candidates = attributeBestChildrenList.get(attribute);
+
+    // while there are rules
+    for (var i = 0; i < getMaxNrOfChildren() && i < candidates.size(); i++) {
+      var key = candidates.entropy(i);
+      var val = candidates.attribute(i);
+
+      if (!blackList[val] && !bayesNet.getParentSet(val).contains(attribute)
+      /* && parentSets[val].getNrOfParents() < getMaxNrOfParents() */ ) {
+        expansion.add(val, attribute);
+        queue.reach(key, val);
         blackList[val] = true;
       }
     }
@@ -309,28 +252,173 @@ public class BestParentsAndChildrenRecursiveSearch extends SearchAlgorithm {
 
   /** Adds best parents. */
   private void addBestParents(
-      BayesNet bayesNet,
-      Instances instances,
-      SortedMap<Double, Integer> expansionOrder,
-      boolean[] blackList,
-      Integer attribute) {
-    for (var i = 0; i < getMaxNrOfParents(); i++) {
-      var arr = attributeBestParentsList.get(attribute).keySet().toArray();
+      Expansion expansion, ExpansionQueue queue, boolean[] blackList, int attribute) {
+    var candidates = attributeBestParentsList.get(attribute);
+
+    // while there are rules
+    for (var i = 0; i < getMaxNrOfParents() && i < candidates.size(); i++) {
+      var key = candidates.entropy(i);
+      var val = candidates.attribute(i);
+
+      if (!blackList[val]
+      /* && parentSets[attribute].getNrOfParents() < getMaxNrOfParents() */ ) {
+        expansion.add(attribute, val);
+        queue.reach(key, val);
+        blackList[val] = true;
+      }
+    }
+  }
+
+  /** The arcs an expansion adds to a network, at most one for each attribute joining it. */
+  private static final class Expansion {
+
+    private final int[] children;
+    private final int[] parents;
+    private int numArcs;
+
+    // BIC of the expanded network and the order of its start, set for multi-start only
+    private double score;
+    private int order;
 
-      // if there are rules
-      if (arr.length == 0) {
-        break;
+    Expansion(int numAttributes) {
+      children = new int[numAttributes];
+      parents = new int[numAttributes];
+    }
+
+    void add(int child, int parent) {
+      children[numArcs] = child;
+      parents[numArcs] = parent;
+      numArcs++;
+    }
+
+    /** Checks whether this network is better, the earlier start winning ties. */
+    boolean isBetter(Expansion other) {
+      return score > other.score || (score == other.score && order < other.order);
+    }
+  }
+
+  /**
+   * Scores the networks expanded from a network left as is by BIC, from the entropies of all pairs:
+   * exactly as {@link NetworkScore} for families with one parent at most, and by the best single
+   * parent, a lower bound of the log-likelihood, for families with more parents. The penalty counts
+   * the parameters of all parents, so denser networks score lower unless they fit better.
+   */
+  private static final class NetworkEntropy {
+
+    private final BayesNet bayesNet;
+    private final PairwiseEntropies pairwiseEntropies;
+    private final int[] cardinalities;
+
+    // entropy of each attribute given its best parent in the network, in bits
+    private final double[] familyEntropies;
+
+    // number of parent instantiations of each attribute in the network
+    private final double[] parentCardinalities;
+
+    NetworkEntropy(BayesNet bayesNet, Instances instances, PairwiseEntropies pairwiseEntropies) {
+      this.bayesNet = bayesNet;
+      this.pairwiseEntropies = pairwiseEntropies;
+      var numAttributes = instances.numAttributes();
+      cardinalities = new int[numAttributes];
+      familyEntropies = new double[numAttributes];
+      parentCardinalities = new double[numAttributes];
+
+      for (var i = 0; i < numAttributes; i++) {
+        var parentSet = bayesNet.getParentSet(i);
+        cardinalities[i] = instances.attribute(i).numValues();
+        familyEntropies[i] = familyEntropy(i, parentSet.getParents(), parentSet.getNrOfParents());
+        parentCardinalities[i] = parentSet.getCardinalityOfParents();
+      }
+    }
+
+    private double familyEntropy(int attribute, int[] parents, int numParents) {
+      var entropy = pairwiseEntropies.entropy(attribute);
+
+      for (var k = 0; k < numParents; k++) {
+        entropy = Math.min(entropy, pairwiseEntropies.conditioned(attribute, parents[k]));
       }
 
-      var key = (Double) arr[i];
-      var val = attributeBestParentsList.get(attribute).get(key);
+      return entropy;
+    }
 
-      if (i < arr.length && !blackList[val]
-      /* && bayesNet.getParentSet(attribute).getNrOfParents() < getMaxNrOfParents() */ ) {
-        bayesNet.getParentSet(attribute).addParent(val, instances);
-        expansionOrder.put(key, val);
-        blackList[val] = true;
+    /** Scores the network with the arcs of an expansion added, in nats. */
+    double bic(Expansion expansion) {
+      var entropies = familyEntropies.clone();
+      var parentCardinalities = this.parentCardinalities.clone();
+
+      for (var k = 0; k < expansion.numArcs; k++) {
+        var child = expansion.children[k];
+        var parent = expansion.parents[k];
+        entropies[child] = Math.min(entropies[child], pairwiseEntropies.conditioned(child, parent));
+        parentCardinalities[child] *= cardinalities[parent];
       }
+
+      var entropy = 0.0;
+      var numParameters = 0.0;
+
+      for (var i = 0; i < entropies.length; i++) {
+        entropy += entropies[i];
+        numParameters += parentCardinalities[i] * (cardinalities[i] - 1);
+      }
+
+      var numInstances = (double) pairwiseEntropies.numInstances();
+
+      return -numInstances * Math.log(2) * entropy
+          - 0.5 * numParameters * Math.log(Math.max(1, numInstances));
+    }
+  }
+
+  /** Expands from the starting attributes [from, to), splitting the range in halves. */
+  private static final class StartTask extends RecursiveTask<Expansion> {
+
+    private static final long serialVersionUID = -3305432329466217542L;
+
+    private final BestParentsAndChildrenRecursiveSearch search;
+    private final transient NetworkEntropy network;
+    private final Instances instances;
+    private final int[] starts;
+    private final int from;
+    private final int to;
+
+    StartTask(
+        BestParentsAndChildrenRecursiveSearch search,
+        NetworkEntropy network,
+        Instances instances,
+        int[] starts,
+        int from,
+        int to) {
+      this.search = search;
+      this.network = network;
+      this.instances = instances;
+      this.starts = starts;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Expansion compute() {
+      if (to - from > 1) {
+        var mid = (from + to) >>> 1;
+        var first = new StartTask(search, network, instances, starts, from, mid);
+        var second = new StartTask(search, network, instances, starts, mid, to);
+        invokeAll(first, second);
+        var firstExpansion = first.join();
+        var secondExpansion = second.join();
+
+        // null if skipped, never the first start
+        return firstExpansion == null
+                || (secondExpansion != null && secondExpansion.isBetter(firstExpansion))
+            ? secondExpansion
+            : firstExpansion;
+      }
+
+      if (from > 0 && search.isStopped()) {
+        return null;
+      }
+
+      var expansion = search.expand(network, instances, starts[from]);
+      expansion.order = from;
+      return expansion;
     }
   }
 }
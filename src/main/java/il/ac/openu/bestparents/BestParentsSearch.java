@@ -1,13 +1,6 @@
 package il.ac.openu.bestparents;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import weka.classifiers.bayes.BayesNet;
-import weka.classifiers.bayes.net.search.SearchAlgorithm;
-import weka.core.ContingencyTables;
 import weka.core.Instances;
 
 /**
@@ -15,7 +8,7 @@ import weka.core.Instances;
  *
  * @author Andrew Kreimer
  */
-public class BestParentsSearch extends SearchAlgorithm {
+public class BestParentsSearch extends PairwiseSearchAlgorithm {
 
   private static final long serialVersionUID = -8315181456697597693L;
 
@@ -26,122 +19,79 @@ public class BestParentsSearch extends SearchAlgorithm {
    * @param instances the data to work with
    */
   @Override
-  public void search(BayesNet bayesNet, Instances instances) {
-    // contingency table for each [attribute X attribute] matrix
-    var attributeMatrix = allocateAttributeMatrix(instances);
+  protected void searchStructure(BayesNet bayesNet, Instances instances) {
+    // count instantiations and rank conditional entropies of contingency tables: for each
+    // attribute with index i, best parents by entropy, bounded by maxNumberOfParents
+    var ranking = rank(instances, getMaxNrOfParents(), 0);
 
-    // count instantiations
-    countInstantiations(instances, attributeMatrix);
-
-    // for each attribute with index i: map<entropy, parent index>, keeping the map sorted
-    var attributeBestParentsList = allocateAttributeMaps(instances);
-
-    findBestParents(instances, attributeMatrix, attributeBestParentsList);
-
-    // add good parents, for each attribute, bounded by maxNumberOfParents
-    addBestRules(bayesNet, instances, attributeBestParentsList);
+    assemble(bayesNet, instances, ranking);
   }
 
-  private void addBestRules(
-      BayesNet bayesNet,
-      Instances instances,
-      List<SortedMap<Double, Integer>> attributeBestParentsList) {
-    for (var i = 0; i < instances.numAttributes(); i++) {
-      var tmpTreeMap = attributeBestParentsList.get(i);
-      var numOfAddedRules = 0;
-
-      for (Entry<Double, Integer> entry : tmpTreeMap.entrySet()) {
-        int value = entry.getValue();
+  /**
+   * Adds good parents, for each attribute, bounded by maxNumberOfParents.
+   *
+   * @param bayesNet the network
+   * @param instances the data to work with
+   * @param ranking the best parents of each attribute
+   */
+  void assemble(BayesNet bayesNet, Instances instances, PairwiseRanking ranking) {
+    var event = beginAssembly(bayesNet, instances);
+    var degreeIndex = DegreeIndex.of(bayesNet);
+    var attributeBestParentsList = ranking.getBestParents();
 
-        if (numOfAddedRules < getMaxNrOfParents()
-            && numOfAddedRules < tmpTreeMap.size()
-            &&
-            // avoid parents with several children
-            BnUtils.countNumOfChildren(bayesNet, instances, value) < getMaxNrOfParents()
-            && !bayesNet.getParentSet(i).contains(value)) {
-          bayesNet.getParentSet(i).addParent(value, instances);
-          numOfAddedRules++;
-        }
+    for (var i = 0; i < instances.numAttributes(); i++) {
+      var candidates = attributeBestParentsList.get(i);
+      var numOfAddedRules = addBestRules(bayesNet, instances, degreeIndex, i, candidates, 0);
+
+      // the next best parents were not kept: rank all of them if any attribute can still be added,
+      // the candidates kept being rejected again as degrees only grow
+      if (numOfAddedRules < getMaxNrOfParents()
+          && candidates.size() == candidates.capacity()
+          && canAddAnyParent(bayesNet, degreeIndex, i)) {
+        candidates = rankAllParents(ranking, i);
+        addBestRules(bayesNet, instances, degreeIndex, i, candidates, numOfAddedRules);
       }
     }
+
+    endAssembly(event, bayesNet);
   }
 
-  /** Finds the best parents for each attribute by conditional entropy and greedy algorithm. */
-  private void findBestParents(
+  /** Adds parents of attribute i from its candidates, returning the number of parents added. */
+  private int addBestRules(
+      BayesNet bayesNet,
       Instances instances,
-      double[][][][] attributeMatrix,
-      List<SortedMap<Double, Integer>> attributeBestParentsList) {
-    // calculate conditional entropy for contingency tables
-    for (var i = 0; i < instances.numAttributes(); i++) {
-      for (var j = 0; j < i; j++) {
-        var entropyConditionedOnRows =
-            ContingencyTables.entropyConditionedOnRows(attributeMatrix[i][j]);
-        var entropyConditionedOnColumns =
-            ContingencyTables.entropyConditionedOnColumns(attributeMatrix[i][j]);
-
-        var lowestEntropy =
-            (entropyConditionedOnRows < entropyConditionedOnColumns)
-                ? entropyConditionedOnRows
-                : entropyConditionedOnColumns;
-
-        // best rule
-        if (entropyConditionedOnRows < entropyConditionedOnColumns) {
-          attributeBestParentsList.get(j).put(lowestEntropy, i);
-        } else {
-          attributeBestParentsList.get(i).put(lowestEntropy, j);
-        }
+      DegreeIndex degreeIndex,
+      int i,
+      CandidateList candidates,
+      int numOfAddedRules) {
+    for (var k = 0; k < candidates.size(); k++) {
+      var value = candidates.attribute(k);
+
+      if (numOfAddedRules < getMaxNrOfParents() && canAddParent(bayesNet, degreeIndex, i, value)) {
+        degreeIndex.addParent(i, value, instances);
+        arcAdded();
+        numOfAddedRules++;
       }
     }
-  }
-
-  /** Allocates List of Map: Map of best parents for each attribute. */
-  private List<SortedMap<Double, Integer>> allocateAttributeMaps(Instances instances) {
-    var attributeBestParentsList = new ArrayList<SortedMap<Double, Integer>>();
-
-    // allocate
-    for (var i = 0; i < instances.numAttributes(); i++) {
-      var tmpTreeMap = new TreeMap<Double, Integer>();
-      attributeBestParentsList.add(i, tmpTreeMap);
-    }
 
-    return attributeBestParentsList;
+    return numOfAddedRules;
   }
 
-  /** Counts instances for each attribute and category. */
-  private void countInstantiations(Instances instances, double[][][][] attributeMatrix) {
-    for (var n = 0; n < instances.numInstances(); n++) {
-      for (var i = 0; i < instances.numAttributes(); i++) {
-        for (var j = 0; j < i; j++) {
-          var iAttrIndex = (int) instances.instance(n).value(i);
-          var jAttrIndex = (int) instances.instance(n).value(j);
-          attributeMatrix[i][j][iAttrIndex][jAttrIndex]++;
-        }
-      }
-    }
+  /** Checks whether value can be added as a parent of attribute i. */
+  private boolean canAddParent(BayesNet bayesNet, DegreeIndex degreeIndex, int i, int value) {
+    // avoid parents with several children
+    return degreeIndex.numChildren(value) < getMaxNrOfParents()
+        && !bayesNet.getParentSet(i).contains(value);
   }
 
-  /** Allocates contingency matrix for each attribute-attribute pair. */
-  private double[][][][] allocateAttributeMatrix(Instances instances) {
-    var attributeMatrix = new double[instances.numAttributes()][instances.numAttributes()][][];
-
-    // allocate
-    for (var j = 0; j < instances.numAttributes(); j++) {
-      for (var k = 0; k < j; k++) {
-        attributeMatrix[j][k] =
-            new double[instances.attribute(j).numValues()][instances.attribute(k).numValues()];
+  /** Checks whether any other attribute can be added as a parent of attribute i. */
+  private boolean canAddAnyParent(BayesNet bayesNet, DegreeIndex degreeIndex, int i) {
+    for (var value = 0; value < bayesNet.getNrOfNodes(); value++) {
+      if (value != i && canAddParent(bayesNet, degreeIndex, i, value)) {
+        return true;
       }
     }
 
-    return attributeMatrix;
-  }
-
-  /** Sets the max number of parents. */
-  public void setMaxNrOfParents(int nMaxNrOfParents) {
-    m_nMaxNrOfParents = nMaxNrOfParents;
-  }
-
-  /** Gets the max number of parents. */
-  public int getMaxNrOfParents() {
-    return m_nMaxNrOfParents;
+    return false;
   }
 }
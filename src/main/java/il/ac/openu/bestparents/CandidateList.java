@@ -0,0 +1,101 @@
+package il.ac.openu.bestparents;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Bounded list of the best candidate attributes for an attribute, ordered by ascending entropy.
+ *
+ * <p>Only the best capacity candidates are kept. Equal entropies are ordered by attribute index, so
+ * the ranking does not depend on insertion order.
+ *
+ * @author Andrew Kreimer
+ */
+public final class CandidateList implements Serializable {
+
+  private static final long serialVersionUID = 3857203716549205382L;
+
+  private final double[] entropies;
+  private final int[] attributes;
+  private int size;
+
+  /** Creates a list keeping at most capacity candidates. */
+  public CandidateList(int capacity) {
+    entropies = new double[capacity];
+    attributes = new int[capacity];
+  }
+
+  /**
+   * Offers a candidate, keeping it if it is among the best ones.
+   *
+   * @param entropy the conditional entropy of the candidate
+   * @param attribute the candidate attribute index
+   * @return true if the candidate was kept
+   */
+  public boolean add(double entropy, int attribute) {
+    var position = size;
+
+    // find the position, shifting worse candidates to the right
+    while (position > 0 && isBetter(entropy, attribute, position - 1)) {
+      position--;
+    }
+
+    if (position == entropies.length) {
+      return false;
+    }
+
+    var length = Math.min(size, entropies.length - 1) - position;
+    System.arraycopy(entropies, position, entropies, position + 1, length);
+    System.arraycopy(attributes, position, attributes, position + 1, length);
+    entropies[position] = entropy;
+    attributes[position] = attribute;
+    size = Math.min(size + 1, entropies.length);
+
+    return true;
+  }
+
+  private boolean isBetter(double entropy, int attribute, int position) {
+    return entropy < entropies[position]
+        || (entropy == entropies[position] && attribute < attributes[position]);
+  }
+
+  /** Removes the candidate at the given position. */
+  public void remove(int position) {
+    var length = size - position - 1;
+    System.arraycopy(entropies, position + 1, entropies, position, length);
+    System.arraycopy(attributes, position + 1, attributes, position, length);
+    size--;
+  }
+
+  /** Gets the entropy of the candidate at the given position, below the size. */
+  public double entropy(int position) {
+    return entropies[Objects.checkIndex(position, size)];
+  }
+
+  /** Gets the attribute index of the candidate at the given position, below the size. */
+  public int attribute(int position) {
+    return attributes[Objects.checkIndex(position, size)];
+  }
+
+  /** Gets the entropy of the best candidate, +infinity if there is none. */
+  public double bestEntropy() {
+    return size == 0 ? Double.POSITIVE_INFINITY : entropies[0];
+  }
+
+  /** Gets the attribute index of the best candidate, -1 if there is none. */
+  public int bestAttribute() {
+    return size == 0 ? -1 : attributes[0];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int capacity() {
+    return entropies.length;
+  }
+}
@@ -0,0 +1,201 @@
+package il.ac.openu.bestparents;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Nominal data stored column by column in a binary file, memory-mapped when opened.
+ *
+ * <p>The file holds the ARFF header of the data followed by one column for each attribute, encoded
+ * like {@link NominalColumns}: a byte, a short or an int for each value, little-endian, missing
+ * values in the first category. Columns are read in place from the mapped file, so opening takes no
+ * parsing and the pages are shared by all processes reading the same file.
+ *
+ * @author Andrew Kreimer
+ */
+public final class ColumnarFile {
+
+  private static final int MAGIC = 0x42504346;
+  private static final int VERSION = 1;
+  private static final int PREFIX_BYTES = 5 * Integer.BYTES;
+
+  /** Number of instances written at once. */
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private final Instances header;
+  private final NominalColumns columns;
+
+  private ColumnarFile(Instances header, NominalColumns columns) {
+    this.header = header;
+    this.columns = columns;
+  }
+
+  /**
+   * Writes nominal data to a columnar file.
+   *
+   * @param instances the data, all attributes nominal
+   * @param file the file, replaced if it exists
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(Instances instances, Path file) throws IOException {
+    for (var i = 0; i < instances.numAttributes(); i++) {
+      if (!instances.attribute(i).isNominal()) {
+        throw new IllegalArgumentException(
+            "Only nominal attributes are stored: " + instances.attribute(i).name());
+      }
+    }
+
+    var headerBytes = new Instances(instances, 0).toString().getBytes(StandardCharsets.UTF_8);
+    var numInstances = instances.numInstances();
+
+    try (var channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      var prefix =
+          ByteBuffer.allocate((int) align(PREFIX_BYTES + headerBytes.length))
+              .order(ByteOrder.LITTLE_ENDIAN);
+      prefix.putInt(MAGIC);
+      prefix.putInt(VERSION);
+      prefix.putInt(instances.classIndex());
+      prefix.putInt(numInstances);
+      prefix.putInt(headerBytes.length);
+      prefix.put(headerBytes);
+      prefix.clear();
+      writeFully(channel, prefix);
+
+      for (var i = 0; i < instances.numAttributes(); i++) {
+        var valueBytes = NominalColumns.valueBytes(instances.attribute(i).numValues());
+        var chunk = ByteBuffer.allocate(CHUNK_SIZE * valueBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (var from = 0; from < numInstances; from += CHUNK_SIZE) {
+          chunk.clear();
+
+          for (var n = from; n < Math.min(from + CHUNK_SIZE, numInstances); n++) {
+            var value = (int) instances.instance(n).value(i);
+
+            if (valueBytes == Byte.BYTES) {
+              chunk.put((byte) value);
+            } else if (valueBytes == Short.BYTES) {
+              chunk.putShort((short) value);
+            } else {
+              chunk.putInt(value);
+            }
+          }
+
+          chunk.flip();
+          writeFully(channel, chunk);
+        }
+
+        // each column starts aligned
+        var columnBytes = (long) numInstances * valueBytes;
+        writeFully(channel, ByteBuffer.allocate((int) (align(columnBytes) - columnBytes)));
+      }
+    }
+  }
+
+  /**
+   * Opens a columnar file, mapping each column into memory.
+   *
+   * @param file the file
+   * @return the header and the columns of the data
+   * @throws IOException if the file cannot be read or is not a columnar file
+   */
+  public static ColumnarFile open(Path file) throws IOException {
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      var prefix = readFully(channel, 0, PREFIX_BYTES);
+
+      if (prefix.getInt() != MAGIC || prefix.getInt() != VERSION) {
+        throw new IOException("Not a columnar file: " + file);
+      }
+
+      var classIndex = prefix.getInt();
+      var numInstances = prefix.getInt();
+      var headerBytes = readFully(channel, PREFIX_BYTES, prefix.getInt());
+      var header =
+          new Instances(new StringReader(StandardCharsets.UTF_8.decode(headerBytes).toString()));
+      header.setClassIndex(classIndex);
+
+      var numValues = new int[header.numAttributes()];
+      var buffers = new ByteBuffer[header.numAttributes()];
+      var position = align(PREFIX_BYTES + headerBytes.capacity());
+
+      for (var i = 0; i < numValues.length; i++) {
+        numValues[i] = header.attribute(i).numValues();
+        var columnBytes = (long) numInstances * NominalColumns.valueBytes(numValues[i]);
+
+        if (columnBytes > Integer.MAX_VALUE) {
+          throw new IOException("Column is too large to map: " + header.attribute(i).name());
+        }
+
+        if (position + columnBytes > channel.size()) {
+          throw new IOException("Columnar file is truncated: " + file);
+        }
+
+        buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, columnBytes);
+        position += align(columnBytes);
+      }
+
+      return new ColumnarFile(header, NominalColumns.wrap(numInstances, numValues, buffers));
+    }
+  }
+
+  private static long align(long position) {
+    return (position + Long.BYTES - 1) & -Long.BYTES;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int length)
+      throws IOException {
+    var buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Columnar file is truncated");
+      }
+    }
+
+    return buffer.flip();
+  }
+
+  /** Gets the header of the data, without instances. */
+  public Instances header() {
+    return new Instances(header, 0);
+  }
+
+  /** Gets the columns of the data, read in place from the file. */
+  @SuppressFBWarnings("EI_EXPOSE_REP")
+  public NominalColumns columns() {
+    return columns;
+  }
+
+  /**
+   * Converts a data file readable by WEKA, e.g. ARFF or CSV, to a columnar file.
+   *
+   * @param args the input file and the output file
+   * @throws Exception if a file cannot be read or written
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      throw new IllegalArgumentException("Usage: ColumnarFile <input file> <output file>");
+    }
+
+    write(DataSource.read(args[0]), Path.of(args[1]));
+  }
+}
@@ -0,0 +1,100 @@
+package il.ac.openu.bestparents;
+
+import java.io.File;
+import java.io.IOException;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.converters.AbstractLoader;
+import weka.core.converters.IncrementalConverter;
+
+/**
+ * Loads a {@link ColumnarFile}, in batch or one instance at a time.
+ *
+ * <p>Pairwise searches count the mapped columns of this loader directly, without building
+ * instances, see {@link PairwiseSearchAlgorithm#count(weka.core.converters.Loader)}.
+ *
+ * @author Andrew Kreimer
+ */
+public final class ColumnarLoader extends AbstractLoader implements IncrementalConverter {
+
+  private static final long serialVersionUID = -4410250733921744086L;
+
+  private File file;
+  private transient ColumnarFile columnarFile;
+  private int nextInstance;
+
+  @Override
+  public void setSource(File file) throws IOException {
+    this.file = file;
+    columnarFile = ColumnarFile.open(file.toPath());
+    nextInstance = 0;
+  }
+
+  @Override
+  public void reset() throws IOException {
+    if (file != null) {
+      setSource(file);
+    }
+  }
+
+  /** Gets the columns of the file, read in place. */
+  public NominalColumns columns() throws IOException {
+    return open().columns();
+  }
+
+  private ColumnarFile open() throws IOException {
+    if (columnarFile == null) {
+      throw new IOException("No source has been specified");
+    }
+
+    return columnarFile;
+  }
+
+  @Override
+  public Instances getStructure() throws IOException {
+    return open().header();
+  }
+
+  @Override
+  public Instances getDataSet() throws IOException {
+    var columns = open().columns();
+    var dataSet = new Instances(open().header(), columns.numInstances());
+
+    for (var n = 0; n < columns.numInstances(); n++) {
+      dataSet.add(instance(columns, n));
+    }
+
+    return dataSet;
+  }
+
+  @Override
+  public Instance getNextInstance(Instances structure) throws IOException {
+    var columns = open().columns();
+
+    if (nextInstance == columns.numInstances()) {
+      return null;
+    }
+
+    var instance = instance(columns, nextInstance++);
+    instance.setDataset(structure);
+
+    return instance;
+  }
+
+  private static Instance instance(NominalColumns columns, int n) {
+    var values = new double[columns.numAttributes()];
+
+    for (var i = 0; i < values.length; i++) {
+      values[i] = columns.value(i, n);
+    }
+
+    return new DenseInstance(1, values);
+  }
+
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1 $");
+  }
+}
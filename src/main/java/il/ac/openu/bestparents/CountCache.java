@@ -0,0 +1,203 @@
+package il.ac.openu.bestparents;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import weka.core.Instances;
+
+/**
+ * Pairwise counts kept on disk across runs, one memory-mapped file for each counted data set.
+ *
+ * <p>Files are named by a fingerprint of the header and the encoded instances, so a search on the
+ * same data reads the counts back instead of counting. When the files exceed the size of the cache
+ * the least recently used ones are deleted. The cache is best effort: a file that cannot be read or
+ * written is logged, a corrupt one deleted, and the counts are counted as usual.
+ *
+ * @author Andrew Kreimer
+ */
+public final class CountCache {
+
+  private static final Logger LOGGER = Logger.getLogger(CountCache.class.getName());
+
+  private static final String SUFFIX = ".counts";
+  private static final int MAGIC = 0x42504343;
+  private static final int VERSION = 1;
+
+  private final Path directory;
+  private final long maxBytes;
+
+  /**
+   * Creates a cache.
+   *
+   * @param directory the directory of the files, created if missing
+   * @param maxBytes the size of all files together
+   */
+  public CountCache(Path directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Fingerprints data as counted: SHA-256 of the header, the decay factor and the encoded
+   * instances.
+   *
+   * @param instances the data, only its header is used
+   * @param columns the encoded instances to count
+   * @param decayFactor the weight of an instance relative to the next one
+   * @return the fingerprint in hex
+   */
+  public static String fingerprint(
+      Instances instances, NominalColumns columns, double decayFactor) {
+    MessageDigest digest;
+
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+
+    digest.update(new Instances(instances, 0).toString().getBytes(StandardCharsets.UTF_8));
+    digest.update(Double.toString(decayFactor).getBytes(StandardCharsets.UTF_8));
+    columns.digest(digest);
+
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /**
+   * Reads the counts of a fingerprint, marking them as recently used. A file that does not match
+   * the data, e.g. truncated or corrupt, is deleted.
+   *
+   * @param fingerprint the fingerprint of the data
+   * @param columns the encoded data, whose attributes the counts must have
+   * @param offHeap whether the tables are kept off the heap, to be closed by the caller
+   * @return the counts, null if not cached
+   */
+  public PairwiseCounts get(String fingerprint, NominalColumns columns, boolean offHeap) {
+    var file = directory.resolve(fingerprint + SUFFIX);
+
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      var buffer =
+          channel
+              .map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+              .order(ByteOrder.LITTLE_ENDIAN);
+
+      if (buffer.remaining() < 2 * Integer.BYTES
+          || buffer.getInt() != MAGIC
+          || buffer.getInt() != VERSION) {
+        LOGGER.warning(() -> "Not a count cache file, deleting it: " + file);
+        delete(file);
+        return null;
+      }
+
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+
+      return PairwiseCounts.read(buffer, columns, offHeap);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Cannot read count cache file: " + file);
+      return null;
+    } catch (RuntimeException e) {
+      // a header that does not match or a short file, counted again and written anew
+      LOGGER.log(Level.WARNING, e, () -> "Corrupt count cache file, deleting it: " + file);
+      delete(file);
+      return null;
+    }
+  }
+
+  /** Deletes a file of the cache, logging a failure. */
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Cannot delete count cache file: " + file);
+    }
+  }
+
+  /**
+   * Writes the counts of a fingerprint, then deletes the least recently used files over the size of
+   * the cache. Counts larger than the cache, or than a mapped file can hold, are not written.
+   *
+   * @param fingerprint the fingerprint of the data
+   * @param pairwiseCounts the counts of all pairs
+   */
+  public void put(String fingerprint, PairwiseCounts pairwiseCounts) {
+    var size = 2L * Integer.BYTES + pairwiseCounts.byteSize();
+
+    if (size > maxBytes || size > Integer.MAX_VALUE) {
+      return;
+    }
+
+    try {
+      Files.createDirectories(directory);
+
+      // written aside and moved in place, so readers never see a partial file
+      var temporary = Files.createTempFile(directory, fingerprint, ".tmp");
+
+      try {
+        try (var channel =
+            FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+          var buffer =
+              channel.map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+          buffer.putInt(MAGIC);
+          buffer.putInt(VERSION);
+          pairwiseCounts.write(buffer);
+        }
+
+        Files.move(
+            temporary,
+            directory.resolve(fingerprint + SUFFIX),
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+
+      evict();
+    } catch (IOException | IllegalArgumentException | BufferOverflowException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Cannot write count cache file in: " + directory);
+    }
+  }
+
+  /** Deletes the least recently used files till the rest fit the size of the cache. */
+  private void evict() throws IOException {
+    var files = new ArrayList<Path>();
+
+    try (var paths = Files.list(directory)) {
+      paths.filter(path -> path.toString().endsWith(SUFFIX)).forEach(files::add);
+    }
+
+    var lastModified = new HashMap<Path, FileTime>();
+
+    for (var file : files) {
+      lastModified.put(file, Files.getLastModifiedTime(file));
+    }
+
+    files.sort(Comparator.comparing(lastModified::get, Comparator.reverseOrder()));
+    var total = 0L;
+
+    for (var file : files) {
+      total += Files.size(file);
+
+      if (total > maxBytes) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+}
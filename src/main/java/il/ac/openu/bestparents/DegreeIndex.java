@@ -0,0 +1,65 @@
+package il.ac.openu.bestparents;
+
+import weka.classifiers.bayes.BayesNet;
+import weka.core.Instances;
+
+/**
+ * Number of parents and children of each node of a network, kept up to date as arcs are added.
+ *
+ * <p>Arcs added through the index update the degrees in O(1), so the searches can ask for the
+ * number of children of a node without scanning all parent sets. Arcs added to the network directly
+ * are not tracked, create a new index to pick them up.
+ *
+ * @author Andrew Kreimer
+ */
+public final class DegreeIndex {
+
+  private final BayesNet bayesNet;
+  private final int[] numParents;
+  private final int[] numChildren;
+
+  private DegreeIndex(BayesNet bayesNet, int numNodes) {
+    this.bayesNet = bayesNet;
+    numParents = new int[numNodes];
+    numChildren = new int[numNodes];
+  }
+
+  /** Creates an index of the current arcs of a network, scanning its parent sets once. */
+  public static DegreeIndex of(BayesNet bayesNet) {
+    var degreeIndex = new DegreeIndex(bayesNet, bayesNet.getNrOfNodes());
+
+    for (var i = 0; i < bayesNet.getNrOfNodes(); i++) {
+      var parentSet = bayesNet.getParentSet(i);
+      degreeIndex.numParents[i] = parentSet.getNrOfParents();
+
+      for (var k = 0; k < parentSet.getNrOfParents(); k++) {
+        degreeIndex.numChildren[parentSet.getParent(k)]++;
+      }
+    }
+
+    return degreeIndex;
+  }
+
+  /**
+   * Adds an arc from parent to child to the network.
+   *
+   * @param child the node getting a parent
+   * @param parent the parent node
+   * @param instances the data, used for the cardinality of the parent set
+   */
+  public void addParent(int child, int parent, Instances instances) {
+    bayesNet.getParentSet(child).addParent(parent, instances);
+    numParents[child]++;
+    numChildren[parent]++;
+  }
+
+  /** Gets the number of parents of a node. */
+  public int numParents(int node) {
+    return numParents[node];
+  }
+
+  /** Gets the number of children of a node. */
+  public int numChildren(int node) {
+    return numChildren[node];
+  }
+}
@@ -0,0 +1,228 @@
+package il.ac.openu.bestparents;
+
+import java.util.Arrays;
+
+/**
+ * Computes both conditional entropies of a contingency table in a single pass over its cells.
+ *
+ * <p>Counts are integers bounded by the number of instances, so n * log(n) is looked up in a table
+ * shared by all kernels, decayed weights are computed. A kernel keeps its own marginal buffers and
+ * is used by one thread only.
+ *
+ * @author Andrew Kreimer
+ */
+final class EntropyKernel {
+
+  private static final double LOG2 = Math.log(2);
+
+  /** Largest n * log(n) lookup table, larger counts are computed. */
+  private static final int MAX_LOOKUP_SIZE = 1 << 20;
+
+  private final double[] nLogN;
+
+  private int[] rowSums = {};
+  private int[] columnSums = {};
+  private double[] rowWeights = {};
+  private double[] columnWeights = {};
+  private int[] countBuffer = {};
+  private double[] weightBuffer = {};
+
+  private double entropyConditionedOnRows;
+  private double entropyConditionedOnColumns;
+  private double rowEntropy;
+  private double columnEntropy;
+
+  EntropyKernel(double[] nLogN) {
+    this.nLogN = nLogN;
+  }
+
+  /** Creates the n * log(n) lookup table for counts up to maxCount. */
+  static double[] lookupTable(long maxCount) {
+    var nLogN = new double[(int) Math.min(maxCount + 1, MAX_LOOKUP_SIZE)];
+
+    for (var n = 1; n < nLogN.length; n++) {
+      nLogN[n] = n * Math.log(n);
+    }
+
+    return nLogN;
+  }
+
+  private double nLogN(int n) {
+    return n < nLogN.length ? nLogN[n] : n * Math.log(n);
+  }
+
+  /**
+   * Scores a table laid out row by row.
+   *
+   * @param counts the array holding the table
+   * @param offset the index of the first cell
+   * @param numRows the number of rows
+   * @param numColumns the number of columns
+   * @return true if the entropy conditioned on rows is the lowest, i.e. rows make the better parent
+   */
+  boolean score(int[] counts, int offset, int numRows, int numColumns) {
+    if (rowSums.length < numRows) {
+      rowSums = new int[numRows];
+    }
+
+    if (columnSums.length < numColumns) {
+      columnSums = new int[numColumns];
+    }
+
+    Arrays.fill(columnSums, 0, numColumns, 0);
+
+    var cells = 0D;
+    var total = 0L;
+
+    for (var k = 0; k < numRows; k++) {
+      var sumForRow = 0;
+      var rowOffset = offset + k * numColumns;
+
+      for (var l = 0; l < numColumns; l++) {
+        var count = counts[rowOffset + l];
+        cells += nLogN(count);
+        sumForRow += count;
+        columnSums[l] += count;
+      }
+
+      rowSums[k] = sumForRow;
+      total += sumForRow;
+    }
+
+    if (total == 0) {
+      entropyConditionedOnRows = 0;
+      entropyConditionedOnColumns = 0;
+      rowEntropy = 0;
+      columnEntropy = 0;
+      return false;
+    }
+
+    var rows = 0D;
+
+    for (var k = 0; k < numRows; k++) {
+      rows += nLogN(rowSums[k]);
+    }
+
+    var columns = 0D;
+
+    for (var l = 0; l < numColumns; l++) {
+      columns += nLogN(columnSums[l]);
+    }
+
+    return setEntropies(cells, rows, columns, (double) total);
+  }
+
+  /**
+   * Scores a table of weights laid out row by row.
+   *
+   * @param weights the array holding the table
+   * @param offset the index of the first cell
+   * @param numRows the number of rows
+   * @param numColumns the number of columns
+   * @return true if the entropy conditioned on rows is the lowest, i.e. rows make the better parent
+   */
+  boolean score(double[] weights, int offset, int numRows, int numColumns) {
+    if (rowWeights.length < numRows) {
+      rowWeights = new double[numRows];
+    }
+
+    if (columnWeights.length < numColumns) {
+      columnWeights = new double[numColumns];
+    }
+
+    Arrays.fill(columnWeights, 0, numColumns, 0);
+
+    var cells = 0D;
+    var total = 0D;
+
+    for (var k = 0; k < numRows; k++) {
+      var sumForRow = 0D;
+      var rowOffset = offset + k * numColumns;
+
+      for (var l = 0; l < numColumns; l++) {
+        var weight = weights[rowOffset + l];
+        cells += xLogX(weight);
+        sumForRow += weight;
+        columnWeights[l] += weight;
+      }
+
+      rowWeights[k] = sumForRow;
+      total += sumForRow;
+    }
+
+    if (!(total > 0)) {
+      entropyConditionedOnRows = 0;
+      entropyConditionedOnColumns = 0;
+      rowEntropy = 0;
+      columnEntropy = 0;
+      return false;
+    }
+
+    var rows = 0D;
+
+    for (var k = 0; k < numRows; k++) {
+      rows += xLogX(rowWeights[k]);
+    }
+
+    var columns = 0D;
+
+    for (var l = 0; l < numColumns; l++) {
+      columns += xLogX(columnWeights[l]);
+    }
+
+    return setEntropies(cells, rows, columns, total);
+  }
+
+  /** Gets a buffer for a table of at least size counts, e.g. to copy a table off the heap. */
+  int[] countBuffer(int size) {
+    if (countBuffer.length < size) {
+      countBuffer = new int[size];
+    }
+
+    return countBuffer;
+  }
+
+  /** Gets a buffer for a table of at least size weights. */
+  double[] weightBuffer(int size) {
+    if (weightBuffer.length < size) {
+      weightBuffer = new double[size];
+    }
+
+    return weightBuffer;
+  }
+
+  /** Weights left over by subtraction may be slightly negative, those count as 0. */
+  private static double xLogX(double x) {
+    return x > 0 ? x * Math.log(x) : 0;
+  }
+
+  private boolean setEntropies(double cells, double rows, double columns, double total) {
+    var norm = total * LOG2;
+    entropyConditionedOnRows = (rows - cells) / norm;
+    entropyConditionedOnColumns = (columns - cells) / norm;
+    rowEntropy = (xLogX(total) - rows) / norm;
+    columnEntropy = (xLogX(total) - columns) / norm;
+
+    return entropyConditionedOnRows < entropyConditionedOnColumns;
+  }
+
+  /** Gets the entropy of the columns given the rows, of the last scored table. */
+  double getEntropyConditionedOnRows() {
+    return entropyConditionedOnRows;
+  }
+
+  /** Gets the entropy of the rows given the columns, of the last scored table. */
+  double getEntropyConditionedOnColumns() {
+    return entropyConditionedOnColumns;
+  }
+
+  /** Gets the entropy of the rows, of the last scored table. */
+  double getRowEntropy() {
+    return rowEntropy;
+  }
+
+  /** Gets the entropy of the columns, of the last scored table. */
+  double getColumnEntropy() {
+    return columnEntropy;
+  }
+}
@@ -0,0 +1,126 @@
+package il.ac.openu.bestparents;
+
+/**
+ * Best-first expansion order of attributes, in primitive buffers allocated once per search.
+ *
+ * <p>Attributes are expanded in waves: first in first out within a wave, while the attributes they
+ * reach wait in a binary heap keyed by entropy and form the next wave, lowest entropy first. Of the
+ * attributes reached with the same entropy only the last one is kept, as in a map keyed by entropy.
+ * Each attribute is queued or reached at most once per search, so the buffers never grow.
+ *
+ * @author Andrew Kreimer
+ */
+final class ExpansionQueue {
+
+  // current wave, [head, tail)
+  private final int[] wave;
+  private int head;
+  private int tail;
+
+  // heap of reached attributes by entropy, then latest reached first
+  private final double[] entropies;
+  private final int[] attributes;
+  private final int[] sequences;
+  private int size;
+  private int sequence;
+
+  /** Creates a queue for the attributes of a network. */
+  ExpansionQueue(int numAttributes) {
+    wave = new int[numAttributes];
+    entropies = new double[numAttributes];
+    attributes = new int[numAttributes];
+    sequences = new int[numAttributes];
+  }
+
+  /** Adds an attribute to the current wave. */
+  void add(int attribute) {
+    wave[tail++] = attribute;
+  }
+
+  /** Checks whether the current wave is expanded. */
+  boolean isEmpty() {
+    return head == tail;
+  }
+
+  /** Removes the next attribute of the current wave. */
+  int remove() {
+    return wave[head++];
+  }
+
+  /** Reaches an attribute, to be expanded in the next wave. */
+  void reach(double entropy, int attribute) {
+    var position = size++;
+    entropies[position] = entropy;
+    attributes[position] = attribute;
+    sequences[position] = sequence++;
+
+    // sift up
+    while (position > 0 && isBefore(position, (position - 1) / 2)) {
+      swap(position, (position - 1) / 2);
+      position = (position - 1) / 2;
+    }
+  }
+
+  /** Starts the next wave with the reached attributes, lowest entropy first. */
+  void nextWave() {
+    head = 0;
+    tail = 0;
+    var lastEntropy = 0.0;
+
+    while (size > 0) {
+      var entropy = entropies[0];
+      var attribute = attributes[0];
+      removeFirst();
+
+      // the latest reached of equal entropies comes first, the others are dropped
+      if (tail == 0 || Double.compare(entropy, lastEntropy) != 0) {
+        wave[tail++] = attribute;
+      }
+
+      lastEntropy = entropy;
+    }
+
+    sequence = 0;
+  }
+
+  private void removeFirst() {
+    size--;
+    swap(0, size);
+    var position = 0;
+
+    // sift down
+    while (2 * position + 1 < size) {
+      var child = 2 * position + 1;
+
+      if (child + 1 < size && isBefore(child + 1, child)) {
+        child++;
+      }
+
+      if (isBefore(child, position)) {
+        swap(child, position);
+        position = child;
+      } else {
+        position = size;
+      }
+    }
+  }
+
+  private boolean isBefore(int first, int second) {
+    var order = Double.compare(entropies[first], entropies[second]);
+    return order < 0 || (order == 0 && sequences[first] > sequences[second]);
+  }
+
+  private void swap(int first, int second) {
+    var entropy = entropies[first];
+    entropies[first] = entropies[second];
+    entropies[second] = entropy;
+
+    var attribute = attributes[first];
+    attributes[first] = attributes[second];
+    attributes[second] = attribute;
+
+    var order = sequences[first];
+    sequences[first] = sequences[second];
+    sequences[second] = order;
+  }
+}
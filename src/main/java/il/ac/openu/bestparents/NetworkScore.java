@@ -0,0 +1,341 @@
+package il.ac.openu.bestparents;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import weka.classifiers.bayes.BayesNet;
+import weka.classifiers.bayes.net.ParentSet;
+
+/**
+ * Log-likelihood, BIC and MDL scores of network structures from the pairwise counts of a search,
+ * e.g. to compare the networks of several searches or parameters on the same counts.
+ *
+ * <p>The counts of a family with one parent at most are exactly a pairwise table, or its margin, so
+ * most structures learned by pairwise searches are scored without touching the data. Families with
+ * more parents are counted from the data in one pass for all of them, and kept, so that they are
+ * not counted again for the next network.
+ *
+ * <p>Scores are in nats over the counted instances, missing values falling into the first value of
+ * their attribute as in the counts; decayed counts score the weighted instances, and have no data
+ * to count wider families from.
+ *
+ * @author Andrew Kreimer
+ */
+public final class NetworkScore {
+
+  private final PairwiseCounts pairwiseCounts;
+  private final NominalColumns columns;
+
+  // log-likelihood of families with more than one parent, keyed by the attribute then its parents
+  private final Map<List<Integer>, Double> familyLogLikelihoods = new HashMap<>();
+
+  /**
+   * Creates a score of networks whose families have one parent at most.
+   *
+   * @param pairwiseCounts the counts of all pairs, not closed by the score
+   */
+  public NetworkScore(PairwiseCounts pairwiseCounts) {
+    this(pairwiseCounts, null);
+  }
+
+  /**
+   * Creates a score of networks, counting families with more parents from the data.
+   *
+   * @param pairwiseCounts the counts of all pairs, not closed by the score
+   * @param columns the counted data, null for families with one parent at most only
+   */
+  @SuppressFBWarnings("EI_EXPOSE_REP2")
+  public NetworkScore(PairwiseCounts pairwiseCounts, NominalColumns columns) {
+    if (columns != null && !pairwiseCounts.hasSameValues(columns)) {
+      throw new IllegalArgumentException("Columns do not match the counts");
+    }
+
+    this.pairwiseCounts = pairwiseCounts;
+    this.columns = columns;
+  }
+
+  /**
+   * Computes the log-likelihood of the counted instances given a network with maximum likelihood
+   * parameters.
+   *
+   * @param bayesNet the network, its structure over the counted attributes
+   * @return the log-likelihood, 0 at most
+   */
+  public double logLikelihood(BayesNet bayesNet) {
+    var numAttributes = pairwiseCounts.numAttributes();
+
+    if (bayesNet.getNrOfNodes() != numAttributes) {
+      throw new IllegalArgumentException(
+          "Network has " + bayesNet.getNrOfNodes() + " nodes, not " + numAttributes);
+    }
+
+    // one data pass for all the wider families not counted yet
+    var attributes = new ArrayList<Integer>();
+
+    for (var i = 0; i < numAttributes; i++) {
+      if (!isPairwise(bayesNet.getParentSet(i))
+          && !familyLogLikelihoods.containsKey(key(i, bayesNet.getParentSet(i)))) {
+        attributes.add(i);
+      }
+    }
+
+    if (!attributes.isEmpty()) {
+      var parentSets = new ParentSet[attributes.size()];
+
+      for (var k = 0; k < parentSets.length; k++) {
+        parentSets[k] = bayesNet.getParentSet(attributes.get(k));
+      }
+
+      countFamilies(attributes.stream().mapToInt(Integer::intValue).toArray(), parentSets);
+    }
+
+    var logLikelihood = 0.0;
+
+    for (var i = 0; i < numAttributes; i++) {
+      logLikelihood += logLikelihood(i, bayesNet.getParentSet(i));
+    }
+
+    return logLikelihood;
+  }
+
+  /**
+   * Computes the log-likelihood of the counted instances given a family with maximum likelihood
+   * parameters, counting the data if it has more than one parent and was not counted before.
+   *
+   * @param attribute the child attribute
+   * @param parentSet the parents of the attribute
+   * @return the log-likelihood of the family, 0 at most
+   */
+  public double logLikelihood(int attribute, ParentSet parentSet) {
+    if (isPairwise(parentSet)) {
+      return parentSet.getNrOfParents() == 0
+          ? marginalLogLikelihood(attribute)
+          : pairLogLikelihood(attribute, parentSet.getParent(0));
+    }
+
+    var key = key(attribute, parentSet);
+
+    if (!familyLogLikelihoods.containsKey(key)) {
+      countFamilies(new int[] {attribute}, new ParentSet[] {parentSet});
+    }
+
+    return familyLogLikelihoods.get(key);
+  }
+
+  /**
+   * Computes the Bayesian information criterion: the log-likelihood less half the number of free
+   * parameters times the log of the number of instances. Higher is better; WEKA scores MDL the same
+   * way on counts smoothed by its prior.
+   *
+   * @param bayesNet the network, its structure over the counted attributes
+   * @return the score
+   */
+  public double bic(BayesNet bayesNet) {
+    var logLikelihood = logLikelihood(bayesNet);
+
+    return logLikelihood - 0.5 * numParameters(bayesNet) * Math.log(numInstances());
+  }
+
+  /**
+   * Computes the minimum description length: the length of the counted instances encoded by a
+   * network plus the length of its parameters, the negated BIC. Lower is better.
+   *
+   * @param bayesNet the network, its structure over the counted attributes
+   * @return the description length in nats
+   */
+  public double mdl(BayesNet bayesNet) {
+    return -bic(bayesNet);
+  }
+
+  /**
+   * Counts the free parameters of a network: for each attribute, one less than its number of values
+   * for each instantiation of its parents.
+   */
+  public static long numParameters(BayesNet bayesNet) {
+    var numParameters = 0L;
+
+    for (var i = 0; i < bayesNet.getNrOfNodes(); i++) {
+      numParameters +=
+          (long) bayesNet.getParentSet(i).getCardinalityOfParents()
+              * (bayesNet.getCardinality(i) - 1);
+    }
+
+    return numParameters;
+  }
+
+  /** Gets the number of counted instances, their weight if decayed. */
+  private double numInstances() {
+    if (pairwiseCounts.decayFactor() == 1 || pairwiseCounts.numAttributes() < 2) {
+      return pairwiseCounts.numInstances();
+    }
+
+    var total = 0.0;
+
+    for (var v = 0; v < pairwiseCounts.numValues(1); v++) {
+      for (var u = 0; u < pairwiseCounts.numValues(0); u++) {
+        total += pairwiseCounts.weight(1, v, 0, u);
+      }
+    }
+
+    return total;
+  }
+
+  /** Checks whether a family is scored from the pairwise counts alone. */
+  private boolean isPairwise(ParentSet parentSet) {
+    return parentSet.getNrOfParents() <= 1 && pairwiseCounts.numAttributes() > 1;
+  }
+
+  private double marginalLogLikelihood(int attribute) {
+    var other = attribute == 0 ? 1 : 0;
+    var logLikelihood = 0.0;
+    var total = 0.0;
+
+    for (var v = 0; v < pairwiseCounts.numValues(attribute); v++) {
+      var weight = 0.0;
+
+      for (var u = 0; u < pairwiseCounts.numValues(other); u++) {
+        weight += pairwiseCounts.weight(attribute, v, other, u);
+      }
+
+      logLikelihood += xLogX(weight);
+      total += weight;
+    }
+
+    return logLikelihood - xLogX(total);
+  }
+
+  private double pairLogLikelihood(int attribute, int parent) {
+    var logLikelihood = 0.0;
+
+    for (var u = 0; u < pairwiseCounts.numValues(parent); u++) {
+      var total = 0.0;
+
+      for (var v = 0; v < pairwiseCounts.numValues(attribute); v++) {
+        var weight = pairwiseCounts.weight(attribute, v, parent, u);
+        logLikelihood += xLogX(weight);
+        total += weight;
+      }
+
+      logLikelihood -= xLogX(total);
+    }
+
+    return logLikelihood;
+  }
+
+  /** Counts the tables of the given families in one pass over the data and keeps their scores. */
+  private void countFamilies(int[] attributes, ParentSet[] parentSets) {
+    if (columns == null) {
+      throw new IllegalStateException("No data to count families with more than one parent");
+    }
+
+    if (pairwiseCounts.decayFactor() < 1) {
+      throw new IllegalStateException("Decayed counts score families with one parent at most");
+    }
+
+    var tables = new int[attributes.length][];
+
+    for (var k = 0; k < attributes.length; k++) {
+      var size = (long) parentSets[k].getCardinalityOfParents() * columns.numValues(attributes[k]);
+
+      if (size > Integer.MAX_VALUE - 8) {
+        throw new IllegalArgumentException(
+            "Family table exceeds the maximal array size: " + attributes[k]);
+      }
+
+      tables[k] = new int[(int) size];
+    }
+
+    // decode only the attributes of the families, a block at a time
+    var used = new boolean[columns.numAttributes()];
+
+    for (var k = 0; k < attributes.length; k++) {
+      used[attributes[k]] = true;
+
+      for (var p = 0; p < parentSets[k].getNrOfParents(); p++) {
+        used[parentSets[k].getParent(p)] = true;
+      }
+    }
+
+    var blockSize = PairwiseCounts.DEFAULT_BLOCK_SIZE;
+    var block = new int[columns.numAttributes()][];
+
+    for (var i = 0; i < block.length; i++) {
+      block[i] = used[i] ? new int[blockSize] : null;
+    }
+
+    for (var from = 0; from < columns.numInstances(); from += blockSize) {
+      var to = Math.min(from + blockSize, columns.numInstances());
+
+      for (var i = 0; i < block.length; i++) {
+        if (used[i]) {
+          columns.decode(i, from, to, block[i]);
+        }
+      }
+
+      for (var k = 0; k < attributes.length; k++) {
+        addBlock(tables[k], attributes[k], parentSets[k], block, from, to);
+      }
+    }
+
+    for (var k = 0; k < attributes.length; k++) {
+      var numValues = columns.numValues(attributes[k]);
+      var logLikelihood = 0.0;
+
+      for (var row = 0; row < tables[k].length; row += numValues) {
+        var total = 0.0;
+
+        for (var v = 0; v < numValues; v++) {
+          logLikelihood += xLogX(tables[k][row + v]);
+          total += tables[k][row + v];
+        }
+
+        logLikelihood -= xLogX(total);
+      }
+
+      familyLogLikelihoods.put(key(attributes[k], parentSets[k]), logLikelihood);
+    }
+  }
+
+  /** Adds instances [from, to) to the table of a family, a row for each parent instantiation. */
+  private void addBlock(
+      int[] table, int attribute, ParentSet parentSet, int[][] block, int from, int to) {
+    var numValues = columns.numValues(attribute);
+
+    for (var n = 0; n < to - from; n++) {
+      var row = 0;
+
+      for (var p = 0; p < parentSet.getNrOfParents(); p++) {
+        var parent = parentSet.getParent(p);
+        row = row * columns.numValues(parent) + block[parent][n];
+      }
+
+      table[row * numValues + block[attribute][n]] += columns.multiplicity(from + n);
+    }
+  }
+
+  /** Keys a family by its attribute and its parents in increasing order. */
+  private static List<Integer> key(int attribute, ParentSet parentSet) {
+    var parents = new int[parentSet.getNrOfParents()];
+
+    for (var p = 0; p < parents.length; p++) {
+      parents[p] = parentSet.getParent(p);
+    }
+
+    Arrays.sort(parents);
+    var key = new ArrayList<Integer>(parents.length + 1);
+    key.add(attribute);
+
+    for (var parent : parents) {
+      key.add(parent);
+    }
+
+    return key;
+  }
+
+  private static double xLogX(double x) {
+    return x > 0 ? x * Math.log(x) : 0;
+  }
+}
@@ -0,0 +1,529 @@
+package il.ac.openu.bestparents;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import weka.core.Instances;
+
+/**
+ * Nominal data encoded once, column by column, into the narrowest primitive type that holds the
+ * attribute's values.
+ *
+ * <p>Compressed columns hold each distinct instance once, with the number of times it occurs.
+ *
+ * <p>Wrapped columns are read in place from buffers, e.g. memory-mapped from a columnar file, in
+ * the same narrowest type, little-endian.
+ *
+ * @author Andrew Kreimer
+ */
+public final class NominalColumns {
+
+  private final int numInstances;
+  private final int[] numValues;
+
+  // exactly one of the four columns is set for each attribute
+  private final byte[][] byteColumns;
+  private final short[][] shortColumns;
+  private final int[][] intColumns;
+  private final ByteBuffer[] bufferColumns;
+
+  // number of occurrences of each instance, null if each instance occurs once
+  private int[] multiplicities;
+
+  private NominalColumns(int numInstances, int[] numValues) {
+    this.numInstances = numInstances;
+    this.numValues = numValues;
+    byteColumns = new byte[numValues.length][];
+    shortColumns = new short[numValues.length][];
+    intColumns = new int[numValues.length][];
+    bufferColumns = new ByteBuffer[numValues.length];
+  }
+
+  /**
+   * Wraps columns held in buffers, without copying them.
+   *
+   * @param numInstances the number of instances
+   * @param numValues the number of values of each attribute
+   * @param columns a buffer for each attribute holding its values from index 0, in {@link
+   *     #valueBytes(int)} bytes each
+   * @return the columns
+   */
+  public static NominalColumns wrap(int numInstances, int[] numValues, ByteBuffer[] columns) {
+    var wrapped = new NominalColumns(numInstances, numValues.clone());
+
+    for (var i = 0; i < numValues.length; i++) {
+      if (columns[i].capacity() < (long) numInstances * valueBytes(numValues[i])) {
+        throw new IllegalArgumentException("Column is too short: " + i);
+      }
+
+      wrapped.bufferColumns[i] = columns[i].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    return wrapped;
+  }
+
+  /** Gets the number of bytes a value of an attribute with numValues values is encoded in. */
+  public static int valueBytes(int numValues) {
+    if (numValues <= 1 << Byte.SIZE) {
+      return Byte.BYTES;
+    } else if (numValues <= 1 << Short.SIZE) {
+      return Short.BYTES;
+    }
+
+    return Integer.BYTES;
+  }
+
+  /**
+   * Encodes all attributes of the given data, see {@link #encode(Instances, int, int)}.
+   *
+   * @param instances the data, all attributes nominal
+   * @return the encoded instances
+   */
+  public static NominalColumns encode(Instances instances) {
+    return encode(instances, 0, instances.numInstances());
+  }
+
+  /**
+   * Encodes all attributes of instances [from, to) of the given data.
+   *
+   * <p>A missing value is encoded as 0, the first value of its attribute, so the counts and all
+   * scores derived from them put missing values into the first category.
+   *
+   * @param instances the data, all attributes nominal
+   * @param from first instance, inclusive
+   * @param to last instance, exclusive
+   * @return the encoded instances, indexed from 0
+   */
+  public static NominalColumns encode(Instances instances, int from, int to) {
+    var numAttributes = instances.numAttributes();
+    var numValues = new int[numAttributes];
+
+    for (var i = 0; i < numAttributes; i++) {
+      if (!instances.attribute(i).isNominal()) {
+        throw new IllegalArgumentException(
+            "Only nominal attributes are counted: " + instances.attribute(i).name());
+      }
+
+      numValues[i] = instances.attribute(i).numValues();
+    }
+
+    var columns = new NominalColumns(to - from, numValues);
+    columns.allocate();
+
+    for (var n = from; n < to; n++) {
+      var instance = instances.instance(n);
+
+      for (var i = 0; i < numAttributes; i++) {
+        columns.set(i, n - from, instance.isMissing(i) ? 0 : (int) instance.value(i));
+      }
+    }
+
+    return columns;
+  }
+
+  /** Allocates a column for each attribute. */
+  private void allocate() {
+    for (var i = 0; i < numValues.length; i++) {
+      if (valueBytes(numValues[i]) == Byte.BYTES) {
+        byteColumns[i] = new byte[numInstances];
+      } else if (valueBytes(numValues[i]) == Short.BYTES) {
+        shortColumns[i] = new short[numInstances];
+      } else {
+        intColumns[i] = new int[numInstances];
+      }
+    }
+  }
+
+  private void set(int attribute, int instance, int value) {
+    if (byteColumns[attribute] != null) {
+      byteColumns[attribute][instance] = (byte) value;
+    } else if (shortColumns[attribute] != null) {
+      shortColumns[attribute][instance] = (short) value;
+    } else {
+      intColumns[attribute][instance] = value;
+    }
+  }
+
+  /**
+   * Decodes the values of an attribute for instances [from, to) into dest, starting at index 0.
+   *
+   * @param attribute the attribute index
+   * @param from first instance, inclusive
+   * @param to last instance, exclusive
+   * @param dest the buffer to fill
+   */
+  public void decode(int attribute, int from, int to, int[] dest) {
+    if (bufferColumns[attribute] != null) {
+      decodeBuffer(attribute, from, to, dest);
+    } else if (byteColumns[attribute] != null) {
+      var column = byteColumns[attribute];
+      for (var n = from; n < to; n++) {
+        dest[n - from] = column[n] & 0xFF;
+      }
+    } else if (shortColumns[attribute] != null) {
+      var column = shortColumns[attribute];
+      for (var n = from; n < to; n++) {
+        dest[n - from] = column[n] & 0xFFFF;
+      }
+    } else {
+      System.arraycopy(intColumns[attribute], from, dest, 0, to - from);
+    }
+  }
+
+  private void decodeBuffer(int attribute, int from, int to, int[] dest) {
+    var column = bufferColumns[attribute];
+    var valueBytes = valueBytes(numValues[attribute]);
+
+    if (valueBytes == Byte.BYTES) {
+      for (var n = from; n < to; n++) {
+        dest[n - from] = column.get(n) & 0xFF;
+      }
+    } else if (valueBytes == Short.BYTES) {
+      for (var n = from; n < to; n++) {
+        dest[n - from] = column.getShort(n * Short.BYTES) & 0xFFFF;
+      }
+    } else {
+      for (var n = from; n < to; n++) {
+        dest[n - from] = column.getInt(n * Integer.BYTES);
+      }
+    }
+  }
+
+  /**
+   * Feeds the number of values of each attribute and the encoded values, column by column, to a
+   * message digest, e.g. to fingerprint the data.
+   */
+  public void digest(MessageDigest digest) {
+    var buffer =
+        ByteBuffer.allocate(Integer.BYTES * Math.max(numValues.length, numInstances))
+            .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.asIntBuffer().put(numValues);
+    digest.update(buffer.array(), 0, Integer.BYTES * numValues.length);
+
+    for (var i = 0; i < numValues.length; i++) {
+      if (bufferColumns[i] != null) {
+        digest.update(bufferColumns[i].slice(0, numInstances * valueBytes(numValues[i])));
+      } else if (byteColumns[i] != null) {
+        digest.update(byteColumns[i], 0, numInstances);
+      } else if (shortColumns[i] != null) {
+        buffer.clear();
+        buffer.asShortBuffer().put(shortColumns[i], 0, numInstances);
+        digest.update(buffer.array(), 0, Short.BYTES * numInstances);
+      } else {
+        buffer.clear();
+        buffer.asIntBuffer().put(intColumns[i], 0, numInstances);
+        digest.update(buffer.array(), 0, Integer.BYTES * numInstances);
+      }
+    }
+
+    if (multiplicities != null) {
+      buffer.clear();
+      buffer.asIntBuffer().put(multiplicities, 0, numInstances);
+      digest.update(buffer.array(), 0, Integer.BYTES * numInstances);
+    }
+  }
+
+  /**
+   * Collapses identical instances into one instance each, keeping the order of first occurrence.
+   * Instances are hashed by their values and equal hashes are compared value by value.
+   *
+   * @return the distinct instances with their multiplicities
+   */
+  public NominalColumns compress() {
+    var hashes = hashRows();
+    var table = hashTable(numInstances);
+    var mask = table.length - 1;
+
+    var distinctRows = new int[numInstances];
+    var distinctMultiplicities = new int[numInstances];
+    var numDistinct = 0;
+
+    for (var n = 0; n < numInstances; n++) {
+      var slot = (int) hashes[n] & mask;
+
+      while (table[slot] >= 0
+          && !(hashes[distinctRows[table[slot]]] == hashes[n]
+              && sameRow(distinctRows[table[slot]], n))) {
+        slot = (slot + 1) & mask;
+      }
+
+      if (table[slot] < 0) {
+        table[slot] = numDistinct;
+        distinctRows[numDistinct++] = n;
+      }
+
+      distinctMultiplicities[table[slot]] += multiplicity(n);
+    }
+
+    return select(distinctRows, distinctMultiplicities, numDistinct);
+  }
+
+  /**
+   * Subtracts instances as multisets: each instance of these columns occurs as many times as here
+   * less the times it occurs in the other columns, if more. Other instances that do not occur here
+   * are ignored.
+   *
+   * @param other columns of the same attributes, compressed or not
+   * @return the remaining distinct instances with their multiplicities
+   */
+  public NominalColumns subtract(NominalColumns other) {
+    var index = index();
+    var distinct = index.distinct;
+    var remaining = Arrays.copyOf(distinct.multiplicities, distinct.numInstances);
+    var otherHashes = index.hashesOf(other);
+
+    for (var n = 0; n < other.numInstances; n++) {
+      var k = index.find(other, n, otherHashes[n]);
+
+      if (k >= 0) {
+        remaining[k] -= other.multiplicity(n);
+      }
+    }
+
+    var rows = new int[distinct.numInstances];
+    var numRemaining = 0;
+
+    for (var k = 0; k < distinct.numInstances; k++) {
+      if (remaining[k] > 0) {
+        remaining[numRemaining] = remaining[k];
+        rows[numRemaining++] = k;
+      }
+    }
+
+    return distinct.select(rows, remaining, numRemaining);
+  }
+
+  /**
+   * Indexes the distinct instances by their values, to look up the instances of other columns many
+   * times over.
+   */
+  RowIndex index() {
+    return new RowIndex(isCompressed() ? this : compress());
+  }
+
+  /** Creates an open addressing table for instance indexes, at most half full, all slots empty. */
+  private static int[] hashTable(int numInstances) {
+    var size = Math.min(1 << 30, (long) Integer.highestOneBit(Math.max(1, numInstances)) << 2);
+    var table = new int[(int) size];
+    Arrays.fill(table, -1);
+    return table;
+  }
+
+  /**
+   * Copies the given instances into columns, compressed with the given multiplicities unless they
+   * are null.
+   */
+  private NominalColumns select(int[] rows, int[] rowMultiplicities, int numRows) {
+    var columns = new NominalColumns(numRows, numValues);
+    columns.allocate();
+
+    for (var i = 0; i < numValues.length; i++) {
+      for (var k = 0; k < numRows; k++) {
+        columns.set(i, k, value(i, rows[k]));
+      }
+    }
+
+    columns.multiplicities =
+        rowMultiplicities == null ? null : Arrays.copyOf(rowMultiplicities, numRows);
+
+    return columns;
+  }
+
+  /** Hashes each instance by its values, attribute by attribute. */
+  private long[] hashRows() {
+    var hashes = new long[numInstances];
+    var values = new int[numInstances];
+
+    for (var i = 0; i < numValues.length; i++) {
+      decode(i, 0, numInstances, values);
+
+      for (var n = 0; n < numInstances; n++) {
+        hashes[n] = (hashes[n] + values[n]) * 0x9E3779B97F4A7C15L;
+      }
+    }
+
+    for (var n = 0; n < numInstances; n++) {
+      hashes[n] ^= hashes[n] >>> 32;
+    }
+
+    return hashes;
+  }
+
+  private boolean sameRow(int first, int second) {
+    return sameRow(first, this, second);
+  }
+
+  private boolean sameRow(int first, NominalColumns other, int second) {
+    for (var i = 0; i < numValues.length; i++) {
+      if (value(i, first) != other.value(i, second)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /** Checks whether instances carry multiplicities, i.e. the columns were compressed. */
+  public boolean isCompressed() {
+    return multiplicities != null;
+  }
+
+  /** Returns the number of times an instance occurs, 1 unless the columns were compressed. */
+  public int multiplicity(int instance) {
+    return multiplicities == null ? 1 : multiplicities[instance];
+  }
+
+  /** Returns the value of an attribute for a single instance. */
+  public int value(int attribute, int instance) {
+    if (bufferColumns[attribute] != null) {
+      var column = bufferColumns[attribute];
+      var valueBytes = valueBytes(numValues[attribute]);
+
+      if (valueBytes == Byte.BYTES) {
+        return column.get(instance) & 0xFF;
+      } else if (valueBytes == Short.BYTES) {
+        return column.getShort(instance * Short.BYTES) & 0xFFFF;
+      }
+
+      return column.getInt(instance * Integer.BYTES);
+    } else if (byteColumns[attribute] != null) {
+      return byteColumns[attribute][instance] & 0xFF;
+    } else if (shortColumns[attribute] != null) {
+      return shortColumns[attribute][instance] & 0xFFFF;
+    }
+
+    return intColumns[attribute][instance];
+  }
+
+  /** Gets the number of instances, distinct ones if the columns were compressed. */
+  public int numInstances() {
+    return numInstances;
+  }
+
+  public int numAttributes() {
+    return numValues.length;
+  }
+
+  /** Gets the number of values (categories) of an attribute. */
+  public int numValues(int attribute) {
+    return numValues[attribute];
+  }
+
+  /** Open addressing table of distinct instances, hashed by their values. */
+  static final class RowIndex {
+
+    private final NominalColumns distinct;
+    private final long[] hashes;
+    private final int[] table;
+    private final int mask;
+
+    private RowIndex(NominalColumns distinct) {
+      this.distinct = distinct;
+      hashes = distinct.hashRows();
+      table = hashTable(distinct.numInstances);
+      mask = table.length - 1;
+
+      for (var k = 0; k < distinct.numInstances; k++) {
+        var slot = (int) hashes[k] & mask;
+
+        while (table[slot] >= 0) {
+          slot = (slot + 1) & mask;
+        }
+
+        table[slot] = k;
+      }
+    }
+
+    /**
+     * Finds the instances these columns hold and the given columns lack, as multisets.
+     *
+     * @param subset columns of the same attributes, compressed or not
+     * @return the lacking instances, one by one and not compressed, null if the given columns hold
+     *     an instance more times than these columns
+     */
+    NominalColumns complement(NominalColumns subset) {
+      var subsetHashes = hashesOf(subset);
+      var matches = new int[subset.numInstances];
+
+      // matched by hash first and verified column by column, each column of these instances read
+      // at once rather than all of them for each instance
+      for (var n = 0; n < subset.numInstances; n++) {
+        matches[n] = find(subsetHashes[n]);
+      }
+
+      var mismatched = new boolean[subset.numInstances];
+      var values = new int[distinct.numInstances];
+      var subsetValues = new int[subset.numInstances];
+
+      for (var i = 0; i < distinct.numValues.length; i++) {
+        distinct.decode(i, 0, distinct.numInstances, values);
+        subset.decode(i, 0, subset.numInstances, subsetValues);
+
+        for (var n = 0; n < subset.numInstances; n++) {
+          mismatched[n] |= matches[n] >= 0 && values[matches[n]] != subsetValues[n];
+        }
+      }
+
+      var remaining = Arrays.copyOf(distinct.multiplicities, distinct.numInstances);
+
+      for (var n = 0; n < subset.numInstances; n++) {
+        // another instance of the same hash
+        var k = mismatched[n] ? find(subset, n, subsetHashes[n]) : matches[n];
+
+        if (k < 0 || (remaining[k] -= subset.multiplicity(n)) < 0) {
+          return null;
+        }
+      }
+
+      var numRemaining = 0L;
+
+      for (var k = 0; k < distinct.numInstances; k++) {
+        numRemaining += remaining[k];
+      }
+
+      var rows = new int[Math.toIntExact(numRemaining)];
+      var numRows = 0;
+
+      for (var k = 0; k < distinct.numInstances; k++) {
+        for (var m = 0; m < remaining[k]; m++) {
+          rows[numRows++] = k;
+        }
+      }
+
+      return distinct.select(rows, null, numRows);
+    }
+
+    /** Hashes the instances of other columns, checking they have the same attributes. */
+    private long[] hashesOf(NominalColumns other) {
+      if (!Arrays.equals(distinct.numValues, other.numValues)) {
+        throw new IllegalArgumentException("Columns have other attributes");
+      }
+
+      return other.hashRows();
+    }
+
+    /** Finds the first distinct instance of the given hash, -1 if absent. */
+    private int find(long hash) {
+      var slot = (int) hash & mask;
+
+      while (table[slot] >= 0 && hashes[table[slot]] != hash) {
+        slot = (slot + 1) & mask;
+      }
+
+      return table[slot];
+    }
+
+    /** Finds an instance of other columns among the distinct instances, -1 if absent. */
+    private int find(NominalColumns other, int n, long hash) {
+      var slot = (int) hash & mask;
+
+      while (table[slot] >= 0
+          && !(hashes[table[slot]] == hash && distinct.sameRow(table[slot], other, n))) {
+        slot = (slot + 1) & mask;
+      }
+
+      return table[slot];
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package il.ac.openu.bestparents;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Contingency tables kept off the heap, in a memory segment of ints, or doubles for weights.
+ *
+ * <p>The memory is released by {@link #close()}, not by the garbage collector. The segment is
+ * shared, so tables counted by one thread can be merged and scored by others. This is the only
+ * class using the Foreign Function &amp; Memory API, a preview API of Java 21: the JVM needs
+ * --enable-preview when off-heap tables are used, and only then.
+ *
+ * @author Andrew Kreimer
+ */
+final class OffHeapTables implements AutoCloseable {
+
+  private final Arena arena;
+  private final MemorySegment segment;
+  private final boolean weighted;
+
+  OffHeapTables(long size, boolean weighted) {
+    this.weighted = weighted;
+    arena = Arena.ofShared();
+    segment = arena.allocate(size * (weighted ? Double.BYTES : Integer.BYTES), Double.BYTES);
+  }
+
+  /** Adds staged counts to the cells starting at index. */
+  void add(int index, int[] staged, int length) {
+    for (var k = 0; k < length; k++) {
+      var cell = segment.getAtIndex(ValueLayout.JAVA_INT, index + k);
+      segment.setAtIndex(ValueLayout.JAVA_INT, index + k, cell + staged[k]);
+    }
+  }
+
+  /** Adds staged weights to the cells starting at index. */
+  void add(int index, double[] staged, int length) {
+    for (var k = 0; k < length; k++) {
+      var cell = segment.getAtIndex(ValueLayout.JAVA_DOUBLE, index + k);
+      segment.setAtIndex(ValueLayout.JAVA_DOUBLE, index + k, cell + staged[k]);
+    }
+  }
+
+  /** Adds the cells of other tables of the same size, sign -1 subtracting them. */
+  void merge(OffHeapTables other, int sign) {
+    var size = segment.byteSize() / (weighted ? Double.BYTES : Integer.BYTES);
+
+    for (var k = 0L; k < size; k++) {
+      if (weighted) {
+        var cell = segment.getAtIndex(ValueLayout.JAVA_DOUBLE, k);
+        var otherCell = other.segment.getAtIndex(ValueLayout.JAVA_DOUBLE, k);
+        segment.setAtIndex(ValueLayout.JAVA_DOUBLE, k, cell + sign * otherCell);
+      } else {
+        var cell = segment.getAtIndex(ValueLayout.JAVA_INT, k);
+        var otherCell = other.segment.getAtIndex(ValueLayout.JAVA_INT, k);
+        segment.setAtIndex(ValueLayout.JAVA_INT, k, cell + sign * otherCell);
+      }
+    }
+  }
+
+  /** Scales all weights. */
+  void scale(double factor) {
+    var size = segment.byteSize() / Double.BYTES;
+
+    for (var k = 0L; k < size; k++) {
+      var cell = segment.getAtIndex(ValueLayout.JAVA_DOUBLE, k);
+      segment.setAtIndex(ValueLayout.JAVA_DOUBLE, k, cell * factor);
+    }
+  }
+
+  /** Copies counts of the cells starting at index into dest. */
+  void copy(int index, int[] dest, int length) {
+    MemorySegment.copy(
+        segment, ValueLayout.JAVA_INT, (long) index * Integer.BYTES, dest, 0, length);
+  }
+
+  /** Copies weights of the cells starting at index into dest. */
+  void copy(int index, double[] dest, int length) {
+    MemorySegment.copy(
+        segment, ValueLayout.JAVA_DOUBLE, (long) index * Double.BYTES, dest, 0, length);
+  }
+
+  int getCount(int index) {
+    return segment.getAtIndex(ValueLayout.JAVA_INT, index);
+  }
+
+  double getWeight(int index) {
+    return segment.getAtIndex(ValueLayout.JAVA_DOUBLE, index);
+  }
+
+  /** Releases the memory, the tables must not be used afterwards. */
+  @Override
+  public void close() {
+    arena.close();
+  }
+}
@@ -0,0 +1,1063 @@
+package il.ac.openu.bestparents;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BooleanSupplier;
+import weka.core.Instances;
+
+/**
+ * Contingency table for each attribute-attribute pair, shared by all the search algorithms.
+ *
+ * <p>Tables are kept for the lower triangle only: the table of (i, j) with j &lt; i holds the
+ * values of attribute i as rows and the values of attribute j as columns. All tables are laid out
+ * row by row in a single int array, the tables of attribute i follow each other in the order of j.
+ *
+ * <p>Tiles hold the tables of a block of row attributes against a block of column attributes only,
+ * so that very wide data can be counted a few blocks at a time.
+ *
+ * <p>Decayed tables hold weights instead of counts in a double array of the same layout: the newest
+ * instance weighs 1 and each older one decayFactor times the next.
+ *
+ * <p>Pairs of low-cardinality attributes are counted 64 instances at a time: each block of
+ * instances is turned into a bitset of the instances taking each value, and a cell is the bit count
+ * of the intersection of two bitsets. The last row and column of a table follow from the number of
+ * instances taking each value, so a table of two binary attributes takes one intersection.
+ *
+ * <p>Off-heap tables keep the same layout in native memory, out of reach of the garbage collector,
+ * and are released by {@link #close()}. Heap tables need not be closed.
+ *
+ * @author Andrew Kreimer
+ */
+public final class PairwiseCounts implements AutoCloseable {
+
+  /** Default number of instances decoded and counted at once. */
+  public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+  /**
+   * Largest table counted by intersecting bitsets, larger ones are counted instance by instance.
+   */
+  private static final int MAX_BITSET_CELLS = 16;
+
+  /** Number of cells copied at once between off-heap tables and buffers. */
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private final Layout layout;
+  private final int[] numValues;
+  private final double decayFactor;
+
+  // table of (i, j) starts at tableOffsets[i - rowFrom] + numValues[i] * valueOffsets[j -
+  // columnFrom]
+  private final int[] tableOffsets;
+  private final int[] valueOffsets;
+
+  // exactly one of the three is set, weights for decayed heap tables
+  private final int[] counts;
+  private final double[] weights;
+  private final OffHeapTables offHeapTables;
+
+  // largest table, off-heap tables are counted in a heap table of this size first
+  private final int maxTableSize;
+  private final int numCells;
+
+  private long numInstances;
+
+  private PairwiseCounts(Layout layout) {
+    this.layout = layout;
+    numValues = layout.numValues;
+    decayFactor = layout.decayFactor;
+    tableOffsets = new int[layout.rowTo - layout.rowFrom];
+    valueOffsets = new int[layout.columnTo - layout.columnFrom + 1];
+
+    for (var j = layout.columnFrom; j < layout.columnTo; j++) {
+      valueOffsets[j - layout.columnFrom + 1] = valueOffsets[j - layout.columnFrom] + numValues[j];
+    }
+
+    var size = 0L;
+    var maxSize = 0;
+
+    for (var i = layout.rowFrom; i < layout.rowTo; i++) {
+      tableOffsets[i - layout.rowFrom] = (int) size;
+      size += (long) numValues[i] * valueOffsets[layout.columnTo(i) - layout.columnFrom];
+
+      for (var j = layout.columnFrom; j < layout.columnTo(i); j++) {
+        maxSize = Math.max(maxSize, numValues[i] * numValues[j]);
+      }
+
+      if (size > Integer.MAX_VALUE - 8) {
+        throw new IllegalArgumentException(
+            "Contingency tables exceed the maximal array size: " + numValues.length);
+      }
+    }
+
+    maxTableSize = maxSize;
+    numCells = (int) size;
+
+    if (layout.offHeap) {
+      checkOffHeap();
+    }
+
+    var event = SearchPhaseEvent.begin(null, "allocate", numValues.length, 0);
+    offHeapTables = layout.offHeap ? new OffHeapTables(size, decayFactor < 1) : null;
+    counts = layout.offHeap || decayFactor < 1 ? null : new int[(int) size];
+    weights = layout.offHeap || decayFactor == 1 ? null : new double[(int) size];
+    event.tableBytes = tableBytes();
+    event.commit();
+  }
+
+  /**
+   * Checks that off-heap tables can be used. They are built on the Foreign Function &amp; Memory
+   * API, a preview API of Java 21, so they load on Java 21 run with --enable-preview only.
+   *
+   * @throws IllegalStateException if this JVM cannot load them
+   */
+  public static void checkOffHeap() {
+    var failure = OffHeapCheck.FAILURE;
+
+    if (failure != null) {
+      throw new IllegalStateException(
+          "Off-heap tables need Java 21 run with --enable-preview, this is Java "
+              + Runtime.version().feature()
+              + ": "
+              + failure);
+    }
+  }
+
+  /** Counts instantiations for each attribute-attribute pair. */
+  public static PairwiseCounts count(Instances instances) {
+    return count(NominalColumns.encode(instances), 1, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Counts instantiations for each attribute-attribute pair.
+   *
+   * <p>With several threads the instances are split into one contiguous range per thread, each
+   * range is counted into its own partial tables and the partial tables are summed up, so memory
+   * grows with one set of tables per thread.
+   *
+   * @param columns the encoded data
+   * @param numThreads the number of threads counting in parallel
+   * @param blockSize the number of instances decoded at once by each thread
+   * @return the counts
+   */
+  public static PairwiseCounts count(NominalColumns columns, int numThreads, int blockSize) {
+    return count(columns, 1, numThreads, blockSize);
+  }
+
+  /**
+   * Counts instantiations for each attribute-attribute pair, weighting older instances down.
+   *
+   * @param columns the encoded data, oldest instance first
+   * @param decayFactor the weight of an instance relative to the next one, 1 for plain counts
+   * @param numThreads the number of threads counting in parallel
+   * @param blockSize the number of instances decoded at once by each thread
+   * @return the counts
+   */
+  public static PairwiseCounts count(
+      NominalColumns columns, double decayFactor, int numThreads, int blockSize) {
+    return count(columns, decayFactor, false, numThreads, blockSize);
+  }
+
+  /**
+   * Counts instantiations for each attribute-attribute pair, into off-heap tables if set.
+   *
+   * @param columns the encoded data, oldest instance first
+   * @param decayFactor the weight of an instance relative to the next one, 1 for plain counts
+   * @param offHeap whether the tables are kept off the heap, to be closed by the caller
+   * @param numThreads the number of threads counting in parallel
+   * @param blockSize the number of instances decoded at once by each thread
+   * @return the counts
+   */
+  public static PairwiseCounts count(
+      NominalColumns columns, double decayFactor, boolean offHeap, int numThreads, int blockSize) {
+    return count(columns, decayFactor, offHeap, numThreads, blockSize, () -> false);
+  }
+
+  /**
+   * Counts instantiations for each attribute-attribute pair till stopped, polled between blocks:
+   * the tables then hold the instances of the blocks counted so far, each pair the same ones, the
+   * first block of each thread counted even if stopped.
+   */
+  static PairwiseCounts count(
+      NominalColumns columns,
+      double decayFactor,
+      boolean offHeap,
+      int numThreads,
+      int blockSize,
+      BooleanSupplier stopped) {
+    return countTile(
+        columns,
+        decayFactor,
+        offHeap,
+        0,
+        columns.numAttributes(),
+        0,
+        columns.numAttributes(),
+        numThreads,
+        blockSize,
+        stopped);
+  }
+
+  /**
+   * Counts instantiations for each pair of a row attribute i in [rowFrom, rowTo) and a column
+   * attribute j in [columnFrom, columnTo), j &lt; i.
+   *
+   * @param columns the encoded data, oldest instance first
+   * @param decayFactor the weight of an instance relative to the next one, 1 for plain counts
+   * @param offHeap whether the tables are kept off the heap, to be closed by the caller
+   * @param rowFrom first row attribute, inclusive
+   * @param rowTo last row attribute, exclusive
+   * @param columnFrom first column attribute, inclusive
+   * @param columnTo last column attribute, exclusive
+   * @param numThreads the number of threads counting in parallel
+   * @param blockSize the number of instances decoded at once by each thread
+   * @return the counts of the tile
+   */
+  public static PairwiseCounts countTile(
+      NominalColumns columns,
+      double decayFactor,
+      boolean offHeap,
+      int rowFrom,
+      int rowTo,
+      int columnFrom,
+      int columnTo,
+      int numThreads,
+      int blockSize) {
+    return countTile(
+        columns,
+        decayFactor,
+        offHeap,
+        rowFrom,
+        rowTo,
+        columnFrom,
+        columnTo,
+        numThreads,
+        blockSize,
+        () -> false);
+  }
+
+  /** Counts the pairs of a tile till stopped, polled between blocks. */
+  static PairwiseCounts countTile(
+      NominalColumns columns,
+      double decayFactor,
+      boolean offHeap,
+      int rowFrom,
+      int rowTo,
+      int columnFrom,
+      int columnTo,
+      int numThreads,
+      int blockSize,
+      BooleanSupplier stopped) {
+    if (!(decayFactor > 0 && decayFactor <= 1)) {
+      throw new IllegalArgumentException("Decay factor must be in (0, 1]: " + decayFactor);
+    }
+
+    if (decayFactor < 1 && columns.isCompressed()) {
+      throw new IllegalArgumentException("Decayed counts need one row for each instance");
+    }
+
+    var numValues = new int[columns.numAttributes()];
+
+    for (var i = 0; i < numValues.length; i++) {
+      numValues[i] = columns.numValues(i);
+    }
+
+    var layout = new Layout(numValues, decayFactor, offHeap, rowFrom, rowTo, columnFrom, columnTo);
+
+    return count(columns, layout, 0, numThreads, blockSize, stopped);
+  }
+
+  /**
+   * Counts the columns into new tables till stopped, the last instance being ageShift instances
+   * old.
+   */
+  private static PairwiseCounts count(
+      NominalColumns columns,
+      Layout layout,
+      long ageShift,
+      int numThreads,
+      int blockSize,
+      BooleanSupplier stopped) {
+    var numInstances = columns.numInstances();
+
+    if (numThreads <= 1 || numInstances <= blockSize) {
+      var pairwiseCounts = new PairwiseCounts(layout);
+      pairwiseCounts.add(columns, 0, numInstances, blockSize, 1, ageShift, stopped);
+      return pairwiseCounts;
+    }
+
+    // at least a block for each range
+    var rangeSize = Math.max(blockSize, (numInstances + numThreads - 1) / numThreads);
+
+    try (var pool = new ForkJoinPool(numThreads)) {
+      return pool.invoke(
+          new CountTask(columns, layout, ageShift, 0, numInstances, rangeSize, blockSize, stopped));
+    }
+  }
+
+  /**
+   * Adds more instances of the same attributes to the tables, leaving the counted ones as they are.
+   * Decayed weights of the counted instances are scaled down by one decay step per new instance.
+   *
+   * @param columns the encoded new instances, oldest instance first
+   * @param numThreads the number of threads counting in parallel
+   * @param blockSize the number of instances decoded at once by each thread
+   */
+  public void update(NominalColumns columns, int numThreads, int blockSize) {
+    if (!hasSameValues(columns) || (decayFactor < 1 && columns.isCompressed())) {
+      throw new IllegalArgumentException("Instances do not match the counted attributes");
+    }
+
+    if (decayFactor < 1) {
+      var scale = Math.pow(decayFactor, columns.numInstances());
+
+      if (offHeapTables != null) {
+        offHeapTables.scale(scale);
+      } else {
+        for (var k = 0; k < weights.length; k++) {
+          weights[k] *= scale;
+        }
+      }
+    }
+
+    if (numThreads <= 1 || columns.numInstances() <= blockSize) {
+      add(columns, 0, columns.numInstances(), blockSize, 1, 0, () -> false);
+    } else {
+      try (var appended = count(columns, layout, 0, numThreads, blockSize, () -> false)) {
+        merge(appended, 1);
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest counted instances from the tables, e.g. when they leave a window.
+   *
+   * @param columns the encoded oldest counted instances, oldest instance first
+   * @param numThreads the number of threads counting in parallel
+   * @param blockSize the number of instances decoded at once by each thread
+   */
+  public void remove(NominalColumns columns, int numThreads, int blockSize) {
+    if (!hasSameValues(columns)
+        || columns.numInstances() > numInstances
+        || (decayFactor < 1 && columns.isCompressed())) {
+      throw new IllegalArgumentException("Instances do not match the counted instances");
+    }
+
+    // age of the newest removed instance
+    var ageShift = numInstances - columns.numInstances();
+
+    if (numThreads <= 1 || columns.numInstances() <= blockSize) {
+      add(columns, 0, columns.numInstances(), blockSize, -1, ageShift, () -> false);
+    } else {
+      try (var leaving = count(columns, layout, ageShift, numThreads, blockSize, () -> false)) {
+        merge(leaving, -1);
+      }
+    }
+  }
+
+  /** Checks whether the columns have the same attributes, value by value, as the tables. */
+  public boolean hasSameValues(NominalColumns columns) {
+    if (columns.numAttributes() != numValues.length) {
+      return false;
+    }
+
+    for (var i = 0; i < numValues.length; i++) {
+      if (columns.numValues(i) != numValues[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Adds instances [from, to) to the tables block by block, sign -1 subtracting them. Compressed
+   * instances are counted by their multiplicities. Decayed weights are set by the age of each
+   * instance, the last one of the columns being ageShift old. No more blocks are added once
+   * stopped, the first one always is, so a stopped search has instances to score.
+   */
+  private void add(
+      NominalColumns columns,
+      int from,
+      int to,
+      int blockSize,
+      int sign,
+      long ageShift,
+      BooleanSupplier stopped) {
+    var block = new int[columns.numAttributes()][];
+    var blockCounts = decayFactor == 1 ? new int[blockSize] : null;
+    var blockWeights = decayFactor == 1 ? null : new double[blockSize];
+
+    // off-heap tables are counted pair by pair in a heap table, then added in one pass
+    var stagedCounts = offHeapTables != null && decayFactor == 1 ? new int[maxTableSize] : null;
+    var stagedWeights = offHeapTables != null && decayFactor < 1 ? new double[maxTableSize] : null;
+
+    // bitsets count each instance once, not by multiplicity or weight
+    var bitsets =
+        decayFactor == 1 && !columns.isCompressed() ? new long[numValues.length][][] : null;
+    var valueCounts = bitsets != null ? new int[numValues.length][] : null;
+
+    for (var i = 0; bitsets != null && i < numValues.length; i++) {
+      if (layout.contains(i) && isBitsetAttribute(i)) {
+        bitsets[i] = new long[numValues[i] - 1][(blockSize + Long.SIZE - 1) / Long.SIZE];
+        valueCounts[i] = new int[numValues[i]];
+      }
+    }
+
+    for (var start = from;
+        start < to && (start == from || !stopped.getAsBoolean());
+        start += blockSize) {
+      var end = Math.min(start + blockSize, to);
+
+      // only the attributes of the tables
+      for (var i = 0; i < columns.numAttributes(); i++) {
+        if (layout.contains(i)) {
+          if (block[i] == null) {
+            block[i] = new int[blockSize];
+          }
+
+          columns.decode(i, start, end, block[i]);
+        }
+      }
+
+      if (blockCounts != null) {
+        for (var n = start; n < end; n++) {
+          blockCounts[n - start] = sign * columns.multiplicity(n);
+          numInstances += blockCounts[n - start];
+        }
+
+        if (bitsets != null) {
+          addBitsets(block, end - start, sign, bitsets, valueCounts, stagedCounts);
+        }
+
+        addBlock(block, end - start, blockCounts, bitsets != null, stagedCounts);
+      } else {
+        for (var n = start; n < end; n++) {
+          var age = ageShift + columns.numInstances() - 1 - n;
+          blockWeights[n - start] = sign * Math.pow(decayFactor, (double) age);
+          numInstances += sign;
+        }
+
+        addBlock(block, end - start, blockWeights, stagedWeights);
+      }
+    }
+  }
+
+  /**
+   * Checks whether all tables of the columns are counted by intersecting bitsets with the SIMD
+   * kernels, the fastest way of counting them, i.e. the kernels are enabled, the columns are not
+   * compressed and no two attributes have more than {@link #MAX_BITSET_CELLS} value pairs.
+   */
+  static boolean isVectorCounted(NominalColumns columns) {
+    if (!VectorKernels.ENABLED || columns.isCompressed()) {
+      return false;
+    }
+
+    // the two largest numbers of values
+    var first = 0;
+    var second = 0;
+
+    for (var i = 0; i < columns.numAttributes(); i++) {
+      var numValues = columns.numValues(i);
+
+      if (numValues > first) {
+        second = first;
+        first = numValues;
+      } else if (numValues > second) {
+        second = numValues;
+      }
+    }
+
+    return first * second <= MAX_BITSET_CELLS;
+  }
+
+  /**
+   * Checks whether attribute i has bitsets: it has at least two values, nominal attributes declared
+   * with none or one being counted instance by instance.
+   */
+  private boolean isBitsetAttribute(int i) {
+    return numValues[i] >= 2 && numValues[i] <= MAX_BITSET_CELLS;
+  }
+
+  /** Checks whether the table of attributes i and j is counted by intersecting bitsets. */
+  private boolean isBitsetPair(int i, int j) {
+    return isBitsetAttribute(i)
+        && isBitsetAttribute(j)
+        && numValues[i] * numValues[j] <= MAX_BITSET_CELLS;
+  }
+
+  /**
+   * Counts the low-cardinality pairs of a decoded block by intersecting bitsets, sign -1
+   * subtracting them, staged if off the heap.
+   *
+   * @param block the decoded values of each attribute
+   * @param length the number of instances of the block
+   * @param sign 1 to add the instances, -1 to subtract them
+   * @param bitsets buffers of the bitsets of all values but the last of each low-cardinality
+   *     attribute
+   * @param valueCounts buffers of the number of instances taking each value
+   * @param staged the heap table of off-heap tables, null for heap tables
+   */
+  private void addBitsets(
+      int[][] block, int length, int sign, long[][][] bitsets, int[][] valueCounts, int[] staged) {
+    var numWords = (length + Long.SIZE - 1) / Long.SIZE;
+    var columnsLeft = new int[MAX_BITSET_CELLS];
+
+    for (var i = 0; i < numValues.length; i++) {
+      if (bitsets[i] != null) {
+        setBitsets(block[i], length, bitsets[i], valueCounts[i]);
+      }
+    }
+
+    for (var i = layout.rowFrom; i < layout.rowTo; i++) {
+      for (var j = layout.columnFrom; j < layout.columnTo(i); j++) {
+        if (isBitsetPair(i, j)) {
+          var offset = offset(i, j);
+          var table = staged == null ? counts : staged;
+          var tableOffset = staged == null ? offset : 0;
+          addIntersections(
+              bitsets[i],
+              bitsets[j],
+              valueCounts[i],
+              valueCounts[j],
+              numWords,
+              sign,
+              columnsLeft,
+              table,
+              tableOffset);
+
+          if (staged != null) {
+            var size = numValues[i] * numValues[j];
+            offHeapTables.add(offset, staged, size);
+            Arrays.fill(staged, 0, size, 0);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the table of two attributes: cells of all values but the last ones are bit counts of
+   * intersections, the last row and column are what is left of the value counts.
+   */
+  private static void addIntersections(
+      long[][] rowBitsets,
+      long[][] columnBitsets,
+      int[] rowCounts,
+      int[] columnCounts,
+      int numWords,
+      int sign,
+      int[] columnsLeft,
+      int[] table,
+      int tableOffset) {
+    var numRows = rowCounts.length;
+    var numColumns = columnCounts.length;
+    System.arraycopy(columnCounts, 0, columnsLeft, 0, numColumns);
+
+    for (var k = 0; k < numRows - 1; k++) {
+      var rowBitset = rowBitsets[k];
+      var rowOffset = tableOffset + k * numColumns;
+      var rowLeft = rowCounts[k];
+
+      for (var l = 0; l < numColumns - 1; l++) {
+        var cell = intersectionCount(rowBitset, columnBitsets[l], numWords);
+
+        table[rowOffset + l] += sign * cell;
+        rowLeft -= cell;
+        columnsLeft[l] -= cell;
+      }
+
+      table[rowOffset + numColumns - 1] += sign * rowLeft;
+      columnsLeft[numColumns - 1] -= rowLeft;
+    }
+
+    var lastRowOffset = tableOffset + (numRows - 1) * numColumns;
+
+    for (var l = 0; l < numColumns; l++) {
+      table[lastRowOffset + l] += sign * columnsLeft[l];
+    }
+  }
+
+  /**
+   * Sets the bitsets of the instances taking each value but the last, and counts the instances
+   * taking each value, with SIMD instructions if enabled.
+   */
+  private static void setBitsets(int[] values, int length, long[][] bitsets, int[] valueCounts) {
+    if (VectorKernels.ENABLED) {
+      VectorKernels.setBitsets(values, length, bitsets, valueCounts);
+      return;
+    }
+
+    var numWords = (length + Long.SIZE - 1) / Long.SIZE;
+
+    for (var bitset : bitsets) {
+      Arrays.fill(bitset, 0, numWords, 0);
+    }
+
+    Arrays.fill(valueCounts, 0);
+    var lastValue = bitsets.length;
+
+    for (var n = 0; n < length; n++) {
+      var value = values[n];
+      valueCounts[value]++;
+
+      if (value < lastValue) {
+        bitsets[value][n >>> 6] |= 1L << n;
+      }
+    }
+  }
+
+  /** Counts the bits set in both bitsets, with SIMD instructions if enabled. */
+  private static int intersectionCount(long[] first, long[] second, int numWords) {
+    if (VectorKernels.ENABLED) {
+      return VectorKernels.intersectionCount(first, second, numWords);
+    }
+
+    var count = 0;
+
+    for (var w = 0; w < numWords; w++) {
+      count += Long.bitCount(first[w] & second[w]);
+    }
+
+    return count;
+  }
+
+  /**
+   * Counts a decoded block, one attribute pair at a time, staged if off the heap. Pairs counted by
+   * intersecting bitsets are skipped if set.
+   */
+  private void addBlock(
+      int[][] block, int length, int[] blockCounts, boolean skipBitsetPairs, int[] staged) {
+    for (var i = layout.rowFrom; i < layout.rowTo; i++) {
+      var iValues = block[i];
+
+      for (var j = layout.columnFrom; j < layout.columnTo(i); j++) {
+        if (!(skipBitsetPairs && isBitsetPair(i, j))) {
+          var jValues = block[j];
+          var offset = offset(i, j);
+          var numColumns = numValues[j];
+          var table = staged == null ? counts : staged;
+          var tableOffset = staged == null ? offset : 0;
+
+          for (var n = 0; n < length; n++) {
+            table[tableOffset + iValues[n] * numColumns + jValues[n]] += blockCounts[n];
+          }
+
+          if (staged != null) {
+            var size = numValues[i] * numColumns;
+            offHeapTables.add(offset, staged, size);
+            Arrays.fill(staged, 0, size, 0);
+          }
+        }
+      }
+    }
+  }
+
+  /** Weighs a decoded block, one attribute pair at a time, staged if off the heap. */
+  private void addBlock(int[][] block, int length, double[] blockWeights, double[] staged) {
+    for (var i = layout.rowFrom; i < layout.rowTo; i++) {
+      var iValues = block[i];
+
+      for (var j = layout.columnFrom; j < layout.columnTo(i); j++) {
+        var jValues = block[j];
+        var offset = offset(i, j);
+        var numColumns = numValues[j];
+        var table = staged == null ? weights : staged;
+        var tableOffset = staged == null ? offset : 0;
+
+        for (var n = 0; n < length; n++) {
+          table[tableOffset + iValues[n] * numColumns + jValues[n]] += blockWeights[n];
+        }
+
+        if (staged != null) {
+          var size = numValues[i] * numColumns;
+          offHeapTables.add(offset, staged, size);
+          Arrays.fill(staged, 0, size, 0);
+        }
+      }
+    }
+  }
+
+  /** Copies heap tables, into off-heap tables if set. */
+  static PairwiseCounts copyOf(PairwiseCounts pairwiseCounts, boolean offHeap) {
+    if (pairwiseCounts.offHeapTables != null) {
+      throw new IllegalArgumentException("Off-heap tables are not copied");
+    }
+
+    var copy = new PairwiseCounts(pairwiseCounts.layout.withOffHeap(offHeap));
+    copy.numInstances = pairwiseCounts.numInstances;
+
+    if (copy.offHeapTables == null && copy.counts != null) {
+      System.arraycopy(pairwiseCounts.counts, 0, copy.counts, 0, copy.numCells);
+    } else if (copy.offHeapTables == null) {
+      System.arraycopy(pairwiseCounts.weights, 0, copy.weights, 0, copy.numCells);
+    } else if (pairwiseCounts.counts != null) {
+      copy.offHeapTables.add(0, pairwiseCounts.counts, copy.numCells);
+    } else {
+      copy.offHeapTables.add(0, pairwiseCounts.weights, copy.numCells);
+    }
+
+    return copy;
+  }
+
+  /** Adds the counts of other tables of the same attributes, sign -1 subtracting them. */
+  private void merge(PairwiseCounts other, int sign) {
+    if (offHeapTables != null) {
+      offHeapTables.merge(other.offHeapTables, sign);
+    } else if (weights == null) {
+      for (var k = 0; k < counts.length; k++) {
+        counts[k] += sign * other.counts[k];
+      }
+    } else {
+      for (var k = 0; k < weights.length; k++) {
+        weights[k] += sign * other.weights[k];
+      }
+    }
+
+    numInstances += sign * other.numInstances;
+  }
+
+  /** Gets the offset of the table of attributes i (rows) and j (columns), j &lt; i. */
+  private int offset(int i, int j) {
+    if (!layout.contains(i, j)) {
+      throw new IllegalArgumentException("Pair is not counted: " + i + ", " + j);
+    }
+
+    return tableOffsets[i - layout.rowFrom] + numValues[i] * valueOffsets[j - layout.columnFrom];
+  }
+
+  /**
+   * Gets the count of instances with value iValue of attribute i and value jValue of attribute j.
+   */
+  public int count(int i, int iValue, int j, int jValue) {
+    if (decayFactor < 1) {
+      throw new IllegalStateException("Decayed tables hold weights");
+    }
+
+    if (i < j) {
+      return count(j, jValue, i, iValue);
+    }
+
+    var index = offset(i, j) + iValue * numValues[j] + jValue;
+
+    return offHeapTables != null ? offHeapTables.getCount(index) : counts[index];
+  }
+
+  /**
+   * Gets the weight of instances with value iValue of attribute i and value jValue of attribute j,
+   * the count for tables that are not decayed.
+   */
+  public double weight(int i, int iValue, int j, int jValue) {
+    if (decayFactor == 1) {
+      return count(i, iValue, j, jValue);
+    }
+
+    if (i < j) {
+      return weight(j, jValue, i, iValue);
+    }
+
+    var index = offset(i, j) + iValue * numValues[j] + jValue;
+
+    return offHeapTables != null ? offHeapTables.getWeight(index) : weights[index];
+  }
+
+  /** Scores the table of attributes i (rows) and j (columns), j &lt; i, with the given kernel. */
+  boolean score(int i, int j, EntropyKernel kernel) {
+    var offset = offset(i, j);
+    var size = numValues[i] * numValues[j];
+
+    if (offHeapTables != null && decayFactor < 1) {
+      var table = kernel.weightBuffer(size);
+      offHeapTables.copy(offset, table, size);
+      return kernel.score(table, 0, numValues[i], numValues[j]);
+    }
+
+    if (offHeapTables != null) {
+      var table = kernel.countBuffer(size);
+      offHeapTables.copy(offset, table, size);
+      return kernel.score(table, 0, numValues[i], numValues[j]);
+    }
+
+    if (weights != null) {
+      return kernel.score(weights, offset, numValues[i], numValues[j]);
+    }
+
+    return kernel.score(counts, offset, numValues[i], numValues[j]);
+  }
+
+  /** Releases off-heap tables, the counts must not be used afterwards. Heap tables are kept. */
+  @Override
+  public void close() {
+    if (offHeapTables != null) {
+      offHeapTables.close();
+    }
+  }
+
+  /** Gets the number of bytes {@link #write(ByteBuffer)} takes. */
+  long byteSize() {
+    return Double.BYTES + Long.BYTES + Integer.BYTES * (1L + numValues.length) + tableBytes();
+  }
+
+  /** Gets the size of the tables in bytes. */
+  long tableBytes() {
+    return (long) (decayFactor < 1 ? Double.BYTES : Integer.BYTES) * numCells;
+  }
+
+  /**
+   * Writes the tables of all pairs to a buffer: the decay factor, the number of instances, the
+   * number of values of each attribute and the cells.
+   */
+  void write(ByteBuffer buffer) {
+    if (layout.rowFrom != 0 || layout.rowTo != numValues.length || layout.columnFrom != 0) {
+      throw new IllegalStateException("Tiles are not written");
+    }
+
+    buffer.putDouble(decayFactor);
+    buffer.putLong(numInstances);
+    buffer.putInt(numValues.length);
+
+    for (var values : numValues) {
+      buffer.putInt(values);
+    }
+
+    if (offHeapTables == null && decayFactor == 1) {
+      buffer.asIntBuffer().put(counts);
+    } else if (offHeapTables == null) {
+      buffer.asDoubleBuffer().put(weights);
+    } else if (decayFactor == 1) {
+      var chunk = new int[Math.min(numCells, CHUNK_SIZE)];
+
+      for (var index = 0; index < numCells; index += chunk.length) {
+        var length = Math.min(chunk.length, numCells - index);
+        offHeapTables.copy(index, chunk, length);
+        buffer.asIntBuffer().put(index, chunk, 0, length);
+      }
+    } else {
+      var chunk = new double[Math.min(numCells, CHUNK_SIZE)];
+
+      for (var index = 0; index < numCells; index += chunk.length) {
+        var length = Math.min(chunk.length, numCells - index);
+        offHeapTables.copy(index, chunk, length);
+        buffer.asDoubleBuffer().put(index, chunk, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Reads tables written by {@link #write(ByteBuffer)}, into off-heap tables if set. The header is
+   * checked against the attributes of the data and the size of the buffer before the tables are
+   * allocated.
+   *
+   * @param buffer the buffer, positioned at the decay factor
+   * @param columns the encoded data, whose attributes the tables must have
+   * @param offHeap whether the tables are kept off the heap, to be closed by the caller
+   * @return the counts
+   * @throws IllegalArgumentException if the header does not match the data or the buffer is short
+   */
+  static PairwiseCounts read(ByteBuffer buffer, NominalColumns columns, boolean offHeap) {
+    var decayFactor = buffer.getDouble();
+    var numInstances = buffer.getLong();
+    var numAttributes = buffer.getInt();
+
+    if (!(decayFactor > 0 && decayFactor <= 1)
+        || numInstances < 0
+        || numAttributes != columns.numAttributes()) {
+      throw new IllegalArgumentException("Tables do not match the counted attributes");
+    }
+
+    var numValues = new int[numAttributes];
+    var size = 0L;
+    var sumOfValues = 0L;
+
+    for (var i = 0; i < numValues.length; i++) {
+      numValues[i] = buffer.getInt();
+
+      if (numValues[i] != columns.numValues(i)) {
+        throw new IllegalArgumentException("Tables do not match the counted attributes");
+      }
+
+      size += numValues[i] * sumOfValues;
+      sumOfValues += numValues[i];
+    }
+
+    var cellBytes = decayFactor < 1 ? Double.BYTES : Integer.BYTES;
+
+    if (size * cellBytes > buffer.remaining()) {
+      throw new IllegalArgumentException(
+          "Tables are truncated: " + buffer.remaining() + " of " + size * cellBytes + " bytes");
+    }
+
+    var layout =
+        new Layout(numValues, decayFactor, offHeap, 0, numValues.length, 0, numValues.length);
+    var pairwiseCounts = new PairwiseCounts(layout);
+    pairwiseCounts.numInstances = numInstances;
+    var numCells = pairwiseCounts.numCells;
+
+    if (!offHeap && decayFactor == 1) {
+      buffer.asIntBuffer().get(pairwiseCounts.counts);
+    } else if (!offHeap) {
+      buffer.asDoubleBuffer().get(pairwiseCounts.weights);
+    } else if (decayFactor == 1) {
+      var chunk = new int[Math.min(numCells, CHUNK_SIZE)];
+
+      for (var index = 0; index < numCells; index += chunk.length) {
+        var length = Math.min(chunk.length, numCells - index);
+        buffer.asIntBuffer().get(index, chunk, 0, length);
+        pairwiseCounts.offHeapTables.add(index, chunk, length);
+      }
+    } else {
+      var chunk = new double[Math.min(numCells, CHUNK_SIZE)];
+
+      for (var index = 0; index < numCells; index += chunk.length) {
+        var length = Math.min(chunk.length, numCells - index);
+        buffer.asDoubleBuffer().get(index, chunk, 0, length);
+        pairwiseCounts.offHeapTables.add(index, chunk, length);
+      }
+    }
+
+    return pairwiseCounts;
+  }
+
+  /** Gets the weight of an instance relative to the next one, 1 if the tables are not decayed. */
+  public double decayFactor() {
+    return decayFactor;
+  }
+
+  /** Gets the number of counted instances. */
+  public long numInstances() {
+    return numInstances;
+  }
+
+  public int numAttributes() {
+    return numValues.length;
+  }
+
+  /** Gets the number of values (categories) of an attribute. */
+  public int numValues(int attribute) {
+    return numValues[attribute];
+  }
+
+  /** Which attribute pairs are counted and how. */
+  private static final class Layout {
+
+    private final int[] numValues;
+    private final double decayFactor;
+    private final boolean offHeap;
+    private final int rowFrom;
+    private final int rowTo;
+    private final int columnFrom;
+    private final int columnTo;
+
+    Layout(
+        int[] numValues,
+        double decayFactor,
+        boolean offHeap,
+        int rowFrom,
+        int rowTo,
+        int columnFrom,
+        int columnTo) {
+      this.numValues = numValues;
+      this.decayFactor = decayFactor;
+      this.offHeap = offHeap;
+      this.rowFrom = rowFrom;
+      this.rowTo = rowTo;
+      this.columnFrom = columnFrom;
+      this.columnTo = columnTo;
+    }
+
+    Layout withOffHeap(boolean offHeap) {
+      return new Layout(numValues, decayFactor, offHeap, rowFrom, rowTo, columnFrom, columnTo);
+    }
+
+    /** Gets the last column attribute counted against row attribute i, exclusive. */
+    int columnTo(int i) {
+      return Math.max(columnFrom, Math.min(i, columnTo));
+    }
+
+    boolean contains(int attribute) {
+      return (attribute >= rowFrom && attribute < rowTo)
+          || (attribute >= columnFrom && attribute < columnTo);
+    }
+
+    boolean contains(int i, int j) {
+      return i >= rowFrom && i < rowTo && j >= columnFrom && j < columnTo(i);
+    }
+  }
+
+  /** Loads the off-heap tables once, keeping why if this JVM cannot load them. */
+  private static final class OffHeapCheck {
+
+    // named rather than referenced, a class literal would load the class here
+    private static final String FAILURE =
+        load(PairwiseCounts.class.getPackageName() + ".OffHeapTables");
+
+    /** Loads a class, returning null or the reason it cannot be loaded. */
+    private static String load(String name) {
+      try {
+        Class.forName(name, false, PairwiseCounts.class.getClassLoader());
+        return null;
+      } catch (ClassNotFoundException | LinkageError e) {
+        return e.toString();
+      }
+    }
+  }
+
+  /** Counts a range of instances, splitting it in halves till the range size is reached. */
+  private static final class CountTask extends RecursiveTask<PairwiseCounts> {
+
+    private static final long serialVersionUID = -2706931596431468279L;
+
+    private final transient NominalColumns columns;
+    private final transient Layout layout;
+    private final long ageShift;
+    private final int from;
+    private final int to;
+    private final int rangeSize;
+    private final int blockSize;
+    private final transient BooleanSupplier stopped;
+
+    CountTask(
+        NominalColumns columns,
+        Layout layout,
+        long ageShift,
+        int from,
+        int to,
+        int rangeSize,
+        int blockSize,
+        BooleanSupplier stopped) {
+      this.columns = columns;
+      this.layout = layout;
+      this.ageShift = ageShift;
+      this.from = from;
+      this.to = to;
+      this.rangeSize = rangeSize;
+      this.blockSize = blockSize;
+      this.stopped = stopped;
+    }
+
+    @Override
+    protected PairwiseCounts compute() {
+      if (to - from <= rangeSize) {
+        var pairwiseCounts = new PairwiseCounts(layout);
+        pairwiseCounts.add(columns, from, to, blockSize, 1, ageShift, stopped);
+        return pairwiseCounts;
+      }
+
+      // split on a range boundary
+      var numRanges = (to - from + rangeSize - 1) / rangeSize;
+      var mid = from + (numRanges / 2) * rangeSize;
+      var left = new CountTask(columns, layout, ageShift, from, mid, rangeSize, blockSize, stopped);
+      var right = new CountTask(columns, layout, ageShift, mid, to, rangeSize, blockSize, stopped);
+      left.fork();
+
+      var pairwiseCounts = right.compute();
+
+      try (var leftCounts = left.join()) {
+        pairwiseCounts.merge(leftCounts, 1);
+      }
+
+      return pairwiseCounts;
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package il.ac.openu.bestparents;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Conditional entropies for each attribute-attribute pair, in both directions, and the entropy of
+ * each attribute.
+ *
+ * <p>Pair (i, j) with j &lt; i is stored at index i * (i - 1) / 2 + j, the order in which the
+ * searches walk the lower triangle.
+ *
+ * @author Andrew Kreimer
+ */
+public final class PairwiseEntropies {
+
+  // the least number of pairs a task scores when split across threads
+  private static final long MIN_PAIRS_PER_TASK = 1 << 12;
+
+  private final int numAttributes;
+  private final long numInstances;
+
+  // entropy of j given i
+  private final double[] entropiesConditionedOnRows;
+
+  // entropy of i given j
+  private final double[] entropiesConditionedOnColumns;
+
+  // entropy of i, from its table with attribute 0, or with attribute 1 for attribute 0
+  private final double[] entropies;
+
+  // whether the pairs (i, j), j < i, are scored
+  private final boolean[] scored;
+
+  private PairwiseEntropies(int numAttributes, long numInstances) {
+    this.numAttributes = numAttributes;
+    this.numInstances = numInstances;
+    var numPairs = (long) numAttributes * (numAttributes - 1) / 2;
+
+    if (numPairs > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException(
+          "Entropies of all pairs exceed the maximal array size, set a memory budget: "
+              + numAttributes);
+    }
+
+    entropiesConditionedOnRows = new double[(int) numPairs];
+    entropiesConditionedOnColumns = new double[(int) numPairs];
+    entropies = new double[numAttributes];
+    scored = new boolean[numAttributes];
+  }
+
+  /**
+   * Computes the conditional entropies of all pairs.
+   *
+   * @param pairwiseCounts the contingency tables
+   * @param numThreads the number of threads scoring pairs in parallel
+   * @return the entropies
+   */
+  public static PairwiseEntropies compute(PairwiseCounts pairwiseCounts, int numThreads) {
+    return compute(pairwiseCounts, numThreads, () -> false);
+  }
+
+  /**
+   * Computes the conditional entropies of the pairs till stopped, polled between rows: the pairs
+   * (i, j), j &lt; i, of a row i are all scored or none, see {@link #isScored(int)}.
+   */
+  static PairwiseEntropies compute(
+      PairwiseCounts pairwiseCounts, int numThreads, BooleanSupplier stopped) {
+    var pairwiseEntropies =
+        new PairwiseEntropies(pairwiseCounts.numAttributes(), pairwiseCounts.numInstances());
+    var numAttributes = pairwiseCounts.numAttributes();
+
+    var nLogN = EntropyKernel.lookupTable(pairwiseCounts.numInstances());
+
+    if (numThreads <= 1) {
+      pairwiseEntropies.score(pairwiseCounts, nLogN, 0, numAttributes, stopped);
+    } else {
+      // a few tasks for each thread, balancing the rows of few and many pairs
+      var minPairs = Math.max(MIN_PAIRS_PER_TASK, numPairs(0, numAttributes) / (4L * numThreads));
+
+      try (var pool = new ForkJoinPool(numThreads)) {
+        pool.invoke(
+            new ScoreTask(
+                pairwiseEntropies, pairwiseCounts, nLogN, 0, numAttributes, minPairs, stopped));
+      }
+    }
+
+    return pairwiseEntropies;
+  }
+
+  /**
+   * Scores the pairs (i, j) for attributes i in [from, to) till stopped, last rows first, their
+   * pairs holding the candidates of the class.
+   */
+  private void score(
+      PairwiseCounts pairwiseCounts, double[] nLogN, int from, int to, BooleanSupplier stopped) {
+    var kernel = new EntropyKernel(nLogN);
+
+    for (var i = to - 1; i >= from && !stopped.getAsBoolean(); i--) {
+      for (var j = 0; j < i; j++) {
+        var index = index(i, j);
+        pairwiseCounts.score(i, j, kernel);
+        entropiesConditionedOnRows[index] = kernel.getEntropyConditionedOnRows();
+        entropiesConditionedOnColumns[index] = kernel.getEntropyConditionedOnColumns();
+
+        if (j == 0) {
+          entropies[i] = kernel.getRowEntropy();
+        }
+
+        if (i == 1) {
+          entropies[0] = kernel.getColumnEntropy();
+        }
+      }
+
+      scored[i] = true;
+    }
+  }
+
+  /** Gets the number of pairs (i, j), j &lt; i, of the rows i in [from, to). */
+  private static long numPairs(int from, int to) {
+    return ((long) to * (to - 1) - (long) from * (from - 1)) / 2;
+  }
+
+  /** Gets the row splitting the pairs of the rows [from, to) in halves, in (from, to). */
+  private static int midRow(int from, int to) {
+    // i * (i - 1) / 2 pairs precede row i, about i^2 / 2
+    var mid = (int) Math.round(Math.sqrt(((double) from * from + (double) to * to) / 2));
+    return Math.min(Math.max(mid, from + 1), to - 1);
+  }
+
+  /** Gets the index of pair (i, j), in long as i * (i - 1) overflows int past 46341 attributes. */
+  private static int index(int i, int j) {
+    return (int) ((long) i * (i - 1) / 2 + j);
+  }
+
+  /** Gets the conditional entropy of attribute j given attribute i, j &lt; i. */
+  public double conditionedOnRows(int i, int j) {
+    return entropiesConditionedOnRows[index(i, j)];
+  }
+
+  /** Gets the conditional entropy of attribute i given attribute j, j &lt; i. */
+  public double conditionedOnColumns(int i, int j) {
+    return entropiesConditionedOnColumns[index(i, j)];
+  }
+
+  /**
+   * Gets the conditional entropy of a child attribute given a parent attribute, in either order.
+   */
+  public double conditioned(int child, int parent) {
+    return parent < child ? conditionedOnColumns(child, parent) : conditionedOnRows(parent, child);
+  }
+
+  /** Checks whether the pairs (i, j), j &lt; i, are scored, all of them unless stopped early. */
+  public boolean isScored(int i) {
+    return scored[i];
+  }
+
+  /** Gets the number of pairs scored. */
+  long numPairsScored() {
+    var numPairs = 0L;
+
+    for (var i = 0; i < numAttributes; i++) {
+      numPairs += scored[i] ? i : 0;
+    }
+
+    return numPairs;
+  }
+
+  /** Gets the entropy of an attribute, 0 if it is the only one or its row is not scored. */
+  public double entropy(int attribute) {
+    return entropies[attribute];
+  }
+
+  public int numAttributes() {
+    return numAttributes;
+  }
+
+  /** Gets the number of instances scored. */
+  public long numInstances() {
+    return numInstances;
+  }
+
+  /**
+   * Scores the pairs of attributes [from, to), splitting the range into halves of about the same
+   * number of pairs till at most minPairs pairs or a single row are left, scored with one kernel.
+   */
+  private static final class ScoreTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 4630418702269341947L;
+
+    private final transient PairwiseEntropies pairwiseEntropies;
+    private final transient PairwiseCounts pairwiseCounts;
+    private final double[] nLogN;
+    private final int from;
+    private final int to;
+    private final long minPairs;
+    private final transient BooleanSupplier stopped;
+
+    ScoreTask(
+        PairwiseEntropies pairwiseEntropies,
+        PairwiseCounts pairwiseCounts,
+        double[] nLogN,
+        int from,
+        int to,
+        long minPairs,
+        BooleanSupplier stopped) {
+      this.pairwiseEntropies = pairwiseEntropies;
+      this.pairwiseCounts = pairwiseCounts;
+      this.nLogN = nLogN;
+      this.from = from;
+      this.to = to;
+      this.minPairs = minPairs;
+      this.stopped = stopped;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1 && numPairs(from, to) > minPairs) {
+        var mid = midRow(from, to);
+        invokeAll(
+            new ScoreTask(pairwiseEntropies, pairwiseCounts, nLogN, from, mid, minPairs, stopped),
+            new ScoreTask(pairwiseEntropies, pairwiseCounts, nLogN, mid, to, minPairs, stopped));
+      } else {
+        pairwiseEntropies.score(pairwiseCounts, nLogN, from, to, stopped);
+      }
+    }
+  }
+}
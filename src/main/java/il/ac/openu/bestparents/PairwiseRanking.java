@@ -0,0 +1,149 @@
+package il.ac.openu.bestparents;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Best parents and best children of each attribute, ranked by conditional entropy.
+ *
+ * <p>For each pair the direction with the lower conditional entropy is ranked: if attribute j given
+ * attribute i has the lower entropy, i is a candidate parent of j and j a candidate child of i.
+ * Ranking both directions keeps every direction of every pair instead.
+ *
+ * @author Andrew Kreimer
+ */
+@SuppressFBWarnings("EI_EXPOSE_REP")
+public final class PairwiseRanking {
+
+  private final List<CandidateList> bestParents;
+  private final List<CandidateList> bestChildren;
+  private final boolean bothDirections;
+
+  // the entropies ranked, or the data ranked tile by tile, to rank an attribute in full again
+  private PairwiseEntropies pairwiseEntropies;
+  private NominalColumns columns;
+
+  // all parents or children of the attributes [rankedInFullFrom, rankedInFullFrom + size), the
+  // last batch ranked in full from the data
+  private boolean rankedInFullParents;
+  private int rankedInFullFrom;
+  private List<CandidateList> rankedInFull = List.of();
+
+  /**
+   * Creates an empty ranking.
+   *
+   * @param numAttributes the number of attributes
+   * @param parentsCapacity the number of parents kept for each attribute, at least one
+   * @param childrenCapacity the number of children kept for each attribute, at least one
+   * @param bothDirections whether both directions of each pair are ranked
+   */
+  public PairwiseRanking(
+      int numAttributes, int parentsCapacity, int childrenCapacity, boolean bothDirections) {
+    bestParents = allocateCandidateLists(numAttributes, parentsCapacity);
+    bestChildren = allocateCandidateLists(numAttributes, childrenCapacity);
+    this.bothDirections = bothDirections;
+  }
+
+  /** Allocates a list of the best candidates for each attribute, keeping at least one. */
+  private static List<CandidateList> allocateCandidateLists(int numAttributes, int capacity) {
+    var candidateLists = new ArrayList<CandidateList>(numAttributes);
+
+    for (var i = 0; i < numAttributes; i++) {
+      candidateLists.add(new CandidateList(Math.max(1, capacity)));
+    }
+
+    return candidateLists;
+  }
+
+  /** Ranks all scored pairs, keeping the entropies to rank an attribute in full. */
+  public void addAll(PairwiseEntropies pairwiseEntropies) {
+    this.pairwiseEntropies = pairwiseEntropies;
+
+    for (var i = 0; i < pairwiseEntropies.numAttributes(); i++) {
+      for (var j = 0; j < i && pairwiseEntropies.isScored(i); j++) {
+        add(
+            i,
+            j,
+            pairwiseEntropies.conditionedOnRows(i, j),
+            pairwiseEntropies.conditionedOnColumns(i, j));
+      }
+    }
+  }
+
+  /**
+   * Ranks a pair.
+   *
+   * @param i the row attribute
+   * @param j the column attribute, j &lt; i
+   * @param entropyConditionedOnRows the entropy of j given i
+   * @param entropyConditionedOnColumns the entropy of i given j
+   */
+  public void add(
+      int i, int j, double entropyConditionedOnRows, double entropyConditionedOnColumns) {
+    if (bothDirections) {
+      bestParents.get(j).add(entropyConditionedOnRows, i);
+      bestChildren.get(i).add(entropyConditionedOnRows, j);
+      bestParents.get(i).add(entropyConditionedOnColumns, j);
+      bestChildren.get(j).add(entropyConditionedOnColumns, i);
+    } else if (isRowParent(entropyConditionedOnRows, entropyConditionedOnColumns)) {
+      bestParents.get(j).add(entropyConditionedOnRows, i);
+      bestChildren.get(i).add(entropyConditionedOnRows, j);
+    } else {
+      bestParents.get(i).add(entropyConditionedOnColumns, j);
+      bestChildren.get(j).add(entropyConditionedOnColumns, i);
+    }
+  }
+
+  /**
+   * Checks whether the row attribute i of a pair is ranked as the parent of the column attribute j,
+   * i.e. j given i has the lower entropy, in a ranking of one direction.
+   */
+  static boolean isRowParent(double entropyConditionedOnRows, double entropyConditionedOnColumns) {
+    return entropyConditionedOnRows < entropyConditionedOnColumns;
+  }
+
+  /** Gets the best parents of each attribute. */
+  public List<CandidateList> getBestParents() {
+    return bestParents;
+  }
+
+  /** Gets the best children of each attribute. */
+  public List<CandidateList> getBestChildren() {
+    return bestChildren;
+  }
+
+  public int numAttributes() {
+    return bestParents.size();
+  }
+
+  /** Gets the entropies ranked, null if ranked tile by tile. */
+  PairwiseEntropies getEntropies() {
+    return pairwiseEntropies;
+  }
+
+  /** Gets the data ranked tile by tile, null if ranked from the entropies of all pairs. */
+  NominalColumns getColumns() {
+    return columns;
+  }
+
+  /** Sets the data ranked tile by tile, to count the pairs of an attribute again. */
+  void setColumns(NominalColumns columns) {
+    this.columns = columns;
+  }
+
+  /** Gets all parents or children of an attribute ranked in full, null if not ranked in full. */
+  CandidateList getRankedInFull(int attribute, boolean parents) {
+    var index = attribute - rankedInFullFrom;
+    return parents == rankedInFullParents && index >= 0 && index < rankedInFull.size()
+        ? rankedInFull.get(index)
+        : null;
+  }
+
+  /** Sets all parents or children of a batch of attributes, from the given one on. */
+  void setRankedInFull(boolean parents, int from, List<CandidateList> batch) {
+    rankedInFullParents = parents;
+    rankedInFullFrom = from;
+    rankedInFull = batch;
+  }
+}
@@ -0,0 +1,924 @@
+package il.ac.openu.bestparents;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import weka.classifiers.bayes.BayesNet;
+import weka.classifiers.bayes.net.search.SearchAlgorithm;
+import weka.core.Instances;
+import weka.core.converters.Loader;
+
+/**
+ * Base for the searches driven by attribute-attribute contingency tables.
+ *
+ * @author Andrew Kreimer
+ */
+public abstract class PairwiseSearchAlgorithm extends SearchAlgorithm {
+
+  private static final long serialVersionUID = 5390427583620717916L;
+
+  private int numThreads = 1;
+  private int blockSize = PairwiseCounts.DEFAULT_BLOCK_SIZE;
+  private boolean incremental;
+  private int windowSize;
+  private double decayFactor = 1;
+  private boolean compressInstances;
+  private int memoryBudget;
+  private boolean offHeap;
+  private boolean foldAware;
+  private String cacheDirectory = "";
+  private int cacheSize = 1024;
+  private int timeBudget;
+
+  // progress of the running or last search
+  private transient volatile SearchProgress progress;
+
+  // cancelled by the caller, kept for the next search if none is running
+  private transient volatile boolean cancelled;
+
+  // counts kept across searches in incremental mode, of instances [countedFrom, countedTo) of data
+  // with the counted header
+  private transient PairwiseCounts pairwiseCounts;
+  private transient Instances countedHeader;
+  private int countedFrom;
+  private int countedTo;
+
+  // counts searched instead of the data, see useCounts
+  private transient PairwiseCounts givenCounts;
+
+  /**
+   * Counts instantiations for each attribute-attribute pair, using the configured threads.
+   *
+   * <p>Only the last windowSize instances are counted if a window is set, and older instances are
+   * weighted down if a decay factor is set.
+   *
+   * <p>In incremental mode the data is taken to be append-only: instances leaving the window are
+   * subtracted from the counts of the previous search and appended instances are added to them.
+   * Data with another header or fewer instances, or a window that has moved by more than its size,
+   * is counted from scratch.
+   *
+   * <p>Counts from scratch are derived from an open reference in fold-aware mode, or read from the
+   * count cache if a cache directory is set, and written to it otherwise.
+   *
+   * <p>Off-heap counts are to be closed by the caller, unless kept for the next search.
+   *
+   * <p>Given counts are returned as they are, the data being used for its header only.
+   */
+  protected PairwiseCounts count(Instances instances) {
+    if (givenCounts != null) {
+      if (!givenCounts.hasSameValues(NominalColumns.encode(instances, 0, 0))) {
+        throw new IllegalArgumentException("Given counts do not match the attributes");
+      }
+
+      return givenCounts;
+    }
+
+    var to = instances.numInstances();
+    var from = windowSize > 0 ? Math.max(0, to - windowSize) : 0;
+
+    // counts kept for the next search are counted in full
+    if (!incremental) {
+      return countFromScratch(instances, from, to, this::isStopped);
+    }
+
+    if (canUpdate(instances, from, to)) {
+      if (from > countedFrom) {
+        var leaving = encode(instances, countedFrom, from);
+        pairwiseCounts.remove(leaving, numThreads, blockSize);
+      }
+
+      if (to > countedTo) {
+        var appended = encode(instances, countedTo, to);
+        pairwiseCounts.update(appended, numThreads, blockSize);
+      }
+    } else {
+      resetCounts();
+      pairwiseCounts = countFromScratch(instances, from, to, () -> false);
+      countedHeader = new Instances(instances, 0);
+    }
+
+    countedFrom = from;
+    countedTo = to;
+
+    return pairwiseCounts;
+  }
+
+  /**
+   * Counts instances [from, to) into new tables till stopped, derives them from an open reference
+   * in fold-aware mode, or reads them from the count cache if set. Counts stopped early are not
+   * cached.
+   */
+  private PairwiseCounts countFromScratch(
+      Instances instances, int from, int to, BooleanSupplier stopped) {
+    var columns = NominalColumns.encode(instances, from, to);
+
+    if (foldAware && decayFactor == 1) {
+      var derived = ReferenceCounts.count(instances, columns, offHeap, numThreads, blockSize);
+
+      if (derived != null) {
+        return derived;
+      }
+    }
+
+    if (cacheDirectory.isEmpty()) {
+      return PairwiseCounts.count(
+          compress(columns), decayFactor, offHeap, numThreads, blockSize, stopped);
+    }
+
+    var cache = new CountCache(Path.of(cacheDirectory), (long) cacheSize << 20);
+    var fingerprint = CountCache.fingerprint(instances, columns, decayFactor);
+    var cached = cache.get(fingerprint, columns, offHeap);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    var counts =
+        PairwiseCounts.count(
+            compress(columns), decayFactor, offHeap, numThreads, blockSize, stopped);
+
+    if (!stopped.getAsBoolean()) {
+      cache.put(fingerprint, counts);
+    }
+
+    return counts;
+  }
+
+  /** Encodes instances [from, to), collapsing identical ones if set and nothing is decayed. */
+  private NominalColumns encode(Instances instances, int from, int to) {
+    return compress(NominalColumns.encode(instances, from, to));
+  }
+
+  private NominalColumns compress(NominalColumns columns) {
+    return compressInstances && decayFactor == 1 ? columns.compress() : columns;
+  }
+
+  /** Checks whether the kept counts can be moved to [from, to) faster than counting again. */
+  private boolean canUpdate(Instances instances, int from, int to) {
+    return pairwiseCounts != null
+        && countedHeader.equalHeaders(instances)
+        && from >= countedFrom
+        && to >= countedTo
+        && (from - countedFrom) + (to - countedTo) < to - from;
+  }
+
+  /** Drops the counts kept in incremental mode, the next search counts from scratch. */
+  public void resetCounts() {
+    if (pairwiseCounts != null) {
+      pairwiseCounts.close();
+    }
+
+    pairwiseCounts = null;
+    countedHeader = null;
+    countedFrom = 0;
+    countedTo = 0;
+  }
+
+  /**
+   * Searches the structure of a network, tracking the progress of the search in a fresh {@link
+   * SearchProgress}, which is registered as an MXBean while it runs. The search stops early when
+   * cancelled or out of its time budget, assembling the network from the pairs ranked so far.
+   *
+   * @param bayesNet the network
+   * @param instances the data to work with
+   */
+  @Override
+  public final void search(BayesNet bayesNet, Instances instances) {
+    var current = new SearchProgress(getClass().getSimpleName(), timeBudget);
+    progress = current;
+
+    if (cancelled) {
+      current.cancel();
+    }
+
+    var name = current.register();
+    current.start();
+
+    try {
+      searchStructure(bayesNet, instances);
+    } finally {
+      current.setPhase("done");
+      SearchProgress.unregister(name);
+      cancelled = false;
+    }
+  }
+
+  /**
+   * Searches the structure of a network, its progress tracked by {@link #search}.
+   *
+   * @param bayesNet the network
+   * @param instances the data to work with
+   */
+  protected abstract void searchStructure(BayesNet bayesNet, Instances instances);
+
+  /** Gets the progress of the running or last search. */
+  public SearchProgress getProgress() {
+    var current = progress;
+
+    if (current == null) {
+      current = new SearchProgress(getClass().getSimpleName(), timeBudget);
+      progress = current;
+    }
+
+    return current;
+  }
+
+  /**
+   * Stops the running search early, or the next search if none is running, keeping the network
+   * assembled from the pairs ranked so far.
+   */
+  public void cancel() {
+    cancelled = true;
+    getProgress().cancel();
+  }
+
+  /** Checks whether the search stops early, cancelled or out of its time budget. */
+  protected boolean isStopped() {
+    return cancelled || getProgress().isStopped();
+  }
+
+  /** Enters a phase of the search, beginning its event, see {@link SearchPhaseEvent}. */
+  SearchPhaseEvent beginPhase(String phase, int numAttributes, long numInstances) {
+    getProgress().setPhase(phase);
+    return SearchPhaseEvent.begin(this, phase, numAttributes, numInstances);
+  }
+
+  /**
+   * Enters the assembly of the network, its event counting the arcs added till {@link
+   * #endAssembly}.
+   */
+  SearchPhaseEvent beginAssembly(BayesNet bayesNet, Instances instances) {
+    var event = beginPhase("assemble", instances.numAttributes(), instances.numInstances());
+    event.numArcs = -numArcs(bayesNet);
+    return event;
+  }
+
+  /** Ends the assembly of the network, committing its event. */
+  void endAssembly(SearchPhaseEvent event, BayesNet bayesNet) {
+    event.numArcs += numArcs(bayesNet);
+    event.commit();
+  }
+
+  /** Counts an arc added to the network in the progress of the search. */
+  void arcAdded() {
+    getProgress().addArcs(1);
+  }
+
+  private static int numArcs(BayesNet bayesNet) {
+    var numArcs = 0;
+
+    for (var i = 0; i < bayesNet.getNrOfNodes(); i++) {
+      numArcs += bayesNet.getParentSet(i).getNrOfParents();
+    }
+
+    return numArcs;
+  }
+
+  /** Gets the number of pairs of attributes. */
+  static long numPairs(int numAttributes) {
+    return (long) numAttributes * (numAttributes - 1) / 2;
+  }
+
+  /** Gets the number of pairs of a tile, rows i in [rowFrom, rowTo) and columns j &lt; i. */
+  private static long numPairs(int rowFrom, int rowTo, int columnFrom, int columnTo) {
+    var numPairs = 0L;
+
+    for (var i = rowFrom; i < rowTo; i++) {
+      numPairs += Math.max(0, Math.min(i, columnTo) - columnFrom);
+    }
+
+    return numPairs;
+  }
+
+  /** Computes conditional entropies for each attribute-attribute pair, using the threads. */
+  protected PairwiseEntropies score(PairwiseCounts pairwiseCounts) {
+    return score(pairwiseCounts, this::isStopped);
+  }
+
+  /** Computes conditional entropies for each attribute-attribute pair till stopped. */
+  private PairwiseEntropies score(PairwiseCounts pairwiseCounts, BooleanSupplier stopped) {
+    var event = beginPhase("score", pairwiseCounts.numAttributes(), pairwiseCounts.numInstances());
+    var pairwiseEntropies = PairwiseEntropies.compute(pairwiseCounts, numThreads, stopped);
+    event.numPairs = pairwiseEntropies.numPairsScored();
+    getProgress().addPairsScored(event.numPairs);
+    event.commit();
+
+    return pairwiseEntropies;
+  }
+
+  /**
+   * Counts and scores each attribute-attribute pair. Off-heap counts are released once scored,
+   * unless kept for the next search in incremental mode. Stopped while counting, the instances
+   * counted so far are scored in full.
+   */
+  protected PairwiseEntropies score(Instances instances) {
+    var event = beginPhase("count", instances.numAttributes(), instances.numInstances());
+    var counts = count(instances);
+    event.tableBytes = counts.tableBytes();
+    getProgress().addPairsCounted(numPairs(instances.numAttributes()));
+    event.commit();
+
+    // stopped while counting: the counted instances are scored, else the network has no arcs
+    var stoppedCounting = isStopped() && counts.numInstances() > 0;
+
+    try {
+      return score(counts, stoppedCounting ? () -> false : this::isStopped);
+    } finally {
+      if (counts != pairwiseCounts && counts != givenCounts) {
+        counts.close();
+      }
+    }
+  }
+
+  /**
+   * Ranks the best parents and children of each attribute, tile by tile if a memory budget is set.
+   * Pairs not scored by the time the search stops are left out.
+   *
+   * @param instances the data to work with
+   * @param maxNrOfParents the number of parents kept for each attribute, at least one
+   * @param maxNrOfChildren the number of children kept for each attribute, at least one
+   * @return the ranking
+   */
+  protected PairwiseRanking rank(Instances instances, int maxNrOfParents, int maxNrOfChildren) {
+    if (!isTiled()) {
+      return rank(score(instances), maxNrOfParents, maxNrOfChildren);
+    }
+
+    var ranking =
+        new PairwiseRanking(instances.numAttributes(), maxNrOfParents, maxNrOfChildren, false);
+    rankTiles(instances, ranking);
+
+    return ranking;
+  }
+
+  /**
+   * Ranks the best parents and children of each attribute from the scores of all pairs.
+   *
+   * @param pairwiseEntropies the conditional entropies of all pairs, only scored rows ranked
+   * @param maxNrOfParents the number of parents kept for each attribute, at least one
+   * @param maxNrOfChildren the number of children kept for each attribute, at least one
+   * @return the ranking
+   */
+  protected PairwiseRanking rank(
+      PairwiseEntropies pairwiseEntropies, int maxNrOfParents, int maxNrOfChildren) {
+    var numAttributes = pairwiseEntropies.numAttributes();
+    var event = beginPhase("rank", numAttributes, pairwiseEntropies.numInstances());
+    var ranking = new PairwiseRanking(numAttributes, maxNrOfParents, maxNrOfChildren, false);
+    ranking.addAll(pairwiseEntropies);
+    event.numPairs = pairwiseEntropies.numPairsScored();
+    event.commit();
+
+    return ranking;
+  }
+
+  /** Checks whether pairs are counted and ranked tile by tile, i.e. a memory budget is set. */
+  protected boolean isTiled() {
+    return memoryBudget > 0 && givenCounts == null;
+  }
+
+  /**
+   * Ranks both directions of each pair tile by tile, keeping the best candidates of each attribute.
+   */
+  protected PairwiseRanking rankTilesBothDirections(Instances instances, int numCandidates) {
+    var ranking =
+        new PairwiseRanking(instances.numAttributes(), numCandidates, numCandidates, true);
+    rankTiles(instances, ranking);
+    return ranking;
+  }
+
+  /**
+   * Counts and scores the pairs a tile at a time: a block of row attributes against a block of
+   * column attributes, whose tables fit the share of the memory budget of each thread. The tables
+   * of a tile are dropped, or released if off the heap, once its pairs are ranked, so memory does
+   * not grow with the number of pairs. Incremental mode does not apply, each tile is counted from
+   * scratch. The pairs of a tile are scored and ranked together, in a single rank phase. Counting
+   * and ranking stop with the search, between blocks of instances and rows of the tile. The tile
+   * counted when the search stops is still ranked from the instances counted so far.
+   */
+  private void rankTiles(Instances instances, PairwiseRanking ranking) {
+    var to = instances.numInstances();
+    var from = windowSize > 0 ? Math.max(0, to - windowSize) : 0;
+    var columns = encode(instances, from, to);
+    ranking.setColumns(columns);
+
+    var blocks = attributeBlocks(columns);
+    EntropyKernel kernel = null;
+
+    // last rows first, their tiles holding the candidates of the class
+    for (var b = blocks.size() - 2; b >= 0 && !isStopped(); b--) {
+      for (var c = 0; c <= b && !isStopped(); c++) {
+        var rowFrom = blocks.get(b);
+        var rowTo = blocks.get(b + 1);
+        var columnFrom = blocks.get(c);
+        var columnTo = blocks.get(c + 1);
+        var numPairs = numPairs(rowFrom, rowTo, columnFrom, columnTo);
+
+        var countEvent = beginPhase("count", columns.numAttributes(), columns.numInstances());
+
+        try (var tile =
+            PairwiseCounts.countTile(
+                columns,
+                decayFactor,
+                offHeap,
+                rowFrom,
+                rowTo,
+                columnFrom,
+                columnTo,
+                numThreads,
+                blockSize,
+                this::isStopped)) {
+          countEvent.tableBytes = tile.tableBytes();
+          getProgress().addPairsCounted(numPairs);
+          countEvent.commit();
+
+          if (kernel == null) {
+            kernel = new EntropyKernel(EntropyKernel.lookupTable(tile.numInstances()));
+          }
+
+          var rankEvent = beginPhase("rank", columns.numAttributes(), columns.numInstances());
+
+          // stopped while counting: ranked in full, the last tile ranked
+          var stoppedCounting = isStopped() && tile.numInstances() > 0;
+          var numPairsRanked = 0L;
+
+          for (var i = rowFrom; i < rowTo && (stoppedCounting || !isStopped()); i++) {
+            numPairsRanked += Math.max(0, Math.min(i, columnTo) - columnFrom);
+
+            for (var j = columnFrom; j < Math.min(i, columnTo); j++) {
+              tile.score(i, j, kernel);
+              ranking.add(
+                  i,
+                  j,
+                  kernel.getEntropyConditionedOnRows(),
+                  kernel.getEntropyConditionedOnColumns());
+            }
+          }
+
+          rankEvent.numPairs = numPairsRanked;
+          getProgress().addPairsScored(numPairsRanked);
+          rankEvent.commit();
+        }
+      }
+    }
+  }
+
+  /**
+   * Ranks all parents of an attribute, for an assembly that used up the candidates kept for it.
+   * The candidates kept come first, in the same order, so the assembly falls through to the next
+   * best ones as if all of them had been kept. See {@link #rankAll}.
+   */
+  protected CandidateList rankAllParents(PairwiseRanking ranking, int attribute) {
+    return rankAll(ranking, attribute, true);
+  }
+
+  /** Ranks all children of an attribute, see {@link #rankAllParents}. */
+  protected CandidateList rankAllChildren(PairwiseRanking ranking, int attribute) {
+    return rankAll(ranking, attribute, false);
+  }
+
+  /**
+   * Ranks all parents or children of an attribute, in one direction: from the entropies of the
+   * ranking, pairs not scored left out, or, if ranked tile by tile, from the pairs of a batch of
+   * attributes counted again, see {@link #rankBatch}. The candidates kept are returned as they are
+   * once the search stops.
+   */
+  private CandidateList rankAll(PairwiseRanking ranking, int attribute, boolean parents) {
+    var pairwiseEntropies = ranking.getEntropies();
+
+    if (pairwiseEntropies != null) {
+      var candidates = new CandidateList(Math.max(1, ranking.numAttributes() - 1));
+
+      for (var other = 0; other < ranking.numAttributes(); other++) {
+        var i = Math.max(attribute, other);
+        var j = Math.min(attribute, other);
+
+        if (i != j && pairwiseEntropies.isScored(i)) {
+          add(
+              candidates,
+              attribute,
+              parents,
+              i,
+              j,
+              pairwiseEntropies.conditionedOnRows(i, j),
+              pairwiseEntropies.conditionedOnColumns(i, j));
+        }
+      }
+
+      return candidates;
+    }
+
+    var candidates = ranking.getRankedInFull(attribute, parents);
+
+    if (candidates == null && ranking.getColumns() != null && !isStopped()) {
+      rankBatch(ranking, attribute, parents);
+      candidates = ranking.getRankedInFull(attribute, parents);
+    }
+
+    if (candidates == null) {
+      var kept = parents ? ranking.getBestParents() : ranking.getBestChildren();
+      return kept.get(attribute);
+    }
+
+    return candidates;
+  }
+
+  /**
+   * Ranks all parents or children of the attributes from the given one on, as many as have their
+   * tables against all attributes in the share of the memory budget of each thread, at least one.
+   * The pairs of the batch are counted again in a single pass over the data, a tile of the batch
+   * rows against the lower attributes and a tile of the higher rows against the batch columns, so
+   * the assembly walking the attributes in order counts the data about once more at most. Nothing
+   * is ranked if the search stops while counting.
+   */
+  private void rankBatch(PairwiseRanking ranking, int from, boolean parents) {
+    var columns = ranking.getColumns();
+    var numAttributes = columns.numAttributes();
+    var cellBytes = decayFactor < 1 ? Double.BYTES : Integer.BYTES;
+    var bytesPerThread = ((long) memoryBudget << 20) / numThreads;
+    var sumOfValues = 0L;
+
+    for (var i = 0; i < numAttributes; i++) {
+      sumOfValues += columns.numValues(i);
+    }
+
+    var to = from + 1;
+
+    for (var batchValues = (long) columns.numValues(from);
+        to < numAttributes
+            && cellBytes * (batchValues + columns.numValues(to)) * sumOfValues <= bytesPerThread;
+        to++) {
+      batchValues += columns.numValues(to);
+    }
+
+    try (var rows = countTile(columns, from, to, 0, to);
+        var higherRows = countTile(columns, to, numAttributes, from, to)) {
+      if (isStopped()) {
+        return;
+      }
+
+      var kernel = new EntropyKernel(EntropyKernel.lookupTable(rows.numInstances()));
+      var batch = new ArrayList<CandidateList>(to - from);
+
+      for (var attribute = from; attribute < to; attribute++) {
+        var candidates = new CandidateList(Math.max(1, numAttributes - 1));
+
+        for (var other = 0; other < numAttributes; other++) {
+          var i = Math.max(attribute, other);
+          var j = Math.min(attribute, other);
+
+          if (i != j) {
+            (i < to ? rows : higherRows).score(i, j, kernel);
+            add(
+                candidates,
+                attribute,
+                parents,
+                i,
+                j,
+                kernel.getEntropyConditionedOnRows(),
+                kernel.getEntropyConditionedOnColumns());
+          }
+        }
+
+        batch.add(candidates);
+      }
+
+      ranking.setRankedInFull(parents, from, batch);
+    }
+  }
+
+  /** Counts the pairs of a tile till the search stops, with the settings of this search. */
+  private PairwiseCounts countTile(
+      NominalColumns columns, int rowFrom, int rowTo, int columnFrom, int columnTo) {
+    return PairwiseCounts.countTile(
+        columns,
+        decayFactor,
+        offHeap,
+        rowFrom,
+        rowTo,
+        columnFrom,
+        columnTo,
+        numThreads,
+        blockSize,
+        this::isStopped);
+  }
+
+  /** Adds the other attribute of pair (i, j) if it is ranked as a parent or child of attribute. */
+  private static void add(
+      CandidateList candidates,
+      int attribute,
+      boolean parents,
+      int i,
+      int j,
+      double entropyConditionedOnRows,
+      double entropyConditionedOnColumns) {
+    var rowParent =
+        PairwiseRanking.isRowParent(entropyConditionedOnRows, entropyConditionedOnColumns);
+    var parent = rowParent ? i : j;
+    var entropy = rowParent ? entropyConditionedOnRows : entropyConditionedOnColumns;
+
+    if (parents && parent != attribute) {
+      candidates.add(entropy, parent);
+    } else if (!parents && parent == attribute) {
+      candidates.add(entropy, i + j - attribute);
+    }
+  }
+
+  /** Splits the attributes into consecutive blocks, any two of them having tables in budget. */
+  private List<Integer> attributeBlocks(NominalColumns columns) {
+    var cellBytes = decayFactor < 1 ? Double.BYTES : Integer.BYTES;
+    var bytesPerThread = ((long) memoryBudget << 20) / numThreads;
+
+    // tables of two blocks take at most cellBytes * (sum of values of the larger block)^2
+    var maxSumOfValues = (long) Math.sqrt((double) bytesPerThread / cellBytes);
+
+    var blocks = new ArrayList<Integer>();
+    blocks.add(0);
+    var sumOfValues = 0L;
+
+    for (var i = 0; i < columns.numAttributes(); i++) {
+      if (sumOfValues > 0 && sumOfValues + columns.numValues(i) > maxSumOfValues) {
+        blocks.add(i);
+        sumOfValues = 0;
+      }
+
+      sumOfValues += columns.numValues(i);
+    }
+
+    blocks.add(columns.numAttributes());
+
+    return blocks;
+  }
+
+  /**
+   * Counts instances read one at a time from a loader, e.g. an ArffLoader or a CSVLoader, without
+   * holding the data in memory. Instances are counted a block per thread at a time, with the decay
+   * factor and storage of this search; windows, compression and the count cache do not apply. The
+   * columns of a {@link ColumnarLoader} are counted in place, without reading instances.
+   *
+   * @param loader the loader, its structure holding nominal attributes only
+   * @return the counts, to be closed by the caller if off the heap
+   * @throws IOException if the loader fails
+   */
+  public PairwiseCounts count(Loader loader) throws IOException {
+    var structure = loader.getStructure();
+
+    // rejects other attributes before any instance is read
+    var header = NominalColumns.encode(structure, 0, 0);
+
+    if (loader instanceof ColumnarLoader columnarLoader) {
+      return PairwiseCounts.count(
+          columnarLoader.columns(), decayFactor, offHeap, numThreads, blockSize);
+    }
+
+    var pairwiseCounts =
+        PairwiseCounts.count(header, decayFactor, offHeap, 1, blockSize);
+    var chunkSize = blockSize * numThreads;
+    var chunk = new Instances(structure, chunkSize);
+
+    for (var instance = loader.getNextInstance(structure);
+        instance != null;
+        instance = loader.getNextInstance(structure)) {
+      chunk.add(instance);
+
+      if (chunk.numInstances() == chunkSize) {
+        pairwiseCounts.update(NominalColumns.encode(chunk), numThreads, blockSize);
+        chunk.delete();
+      }
+    }
+
+    pairwiseCounts.update(NominalColumns.encode(chunk), numThreads, blockSize);
+
+    return pairwiseCounts;
+  }
+
+  /**
+   * Searches the given counts instead of counting the data, which then serves for its header only,
+   * null to count the data again. The counts are not closed by the search.
+   */
+  @SuppressFBWarnings("EI_EXPOSE_REP2")
+  public void useCounts(PairwiseCounts pairwiseCounts) {
+    givenCounts = pairwiseCounts;
+  }
+
+  /** Sets the max number of parents. */
+  public void setMaxNrOfParents(int nMaxNrOfParents) {
+    m_nMaxNrOfParents = nMaxNrOfParents;
+  }
+
+  /** Gets the max number of parents. */
+  public int getMaxNrOfParents() {
+    return m_nMaxNrOfParents;
+  }
+
+  /** Sets the number of threads counting instances and scoring pairs in parallel, 1 for none. */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Number of threads must be positive: " + numThreads);
+    }
+
+    this.numThreads = numThreads;
+  }
+
+  /** Gets the number of threads counting instances and scoring pairs in parallel. */
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Sets the number of instances each thread decodes at once, bounding the per-thread buffer to
+   * blockSize values per attribute.
+   */
+  public void setBlockSize(int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+    }
+
+    this.blockSize = blockSize;
+  }
+
+  /** Gets the number of instances each thread decodes at once. */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Sets incremental mode: counts are kept across searches and only appended instances are counted
+   * again.
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+
+    if (!incremental) {
+      resetCounts();
+    }
+  }
+
+  /** Gets whether counts are kept across searches. */
+  public boolean getIncremental() {
+    return incremental;
+  }
+
+  /** Sets the number of most recent instances to learn from, 0 for all instances. */
+  public void setWindowSize(int windowSize) {
+    if (windowSize < 0) {
+      throw new IllegalArgumentException("Window size must not be negative: " + windowSize);
+    }
+
+    this.windowSize = windowSize;
+    resetCounts();
+  }
+
+  /** Gets the number of most recent instances to learn from, 0 for all instances. */
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * Sets the weight of an instance relative to the next one, 1 for no decay. A factor of 0.99
+   * halves the weight of an instance after about 69 newer instances.
+   */
+  public void setDecayFactor(double decayFactor) {
+    if (!(decayFactor > 0 && decayFactor <= 1)) {
+      throw new IllegalArgumentException("Decay factor must be in (0, 1]: " + decayFactor);
+    }
+
+    this.decayFactor = decayFactor;
+    resetCounts();
+  }
+
+  /** Gets the weight of an instance relative to the next one. */
+  public double getDecayFactor() {
+    return decayFactor;
+  }
+
+  /**
+   * Sets whether identical instances are collapsed before counting, each distinct instance being
+   * counted once with its multiplicity. Pays off for data with many repeated instances, ignored
+   * when a decay factor is set.
+   */
+  public void setCompressInstances(boolean compressInstances) {
+    this.compressInstances = compressInstances;
+  }
+
+  /** Gets whether identical instances are collapsed before counting. */
+  public boolean getCompressInstances() {
+    return compressInstances;
+  }
+
+  /**
+   * Sets the memory for the contingency tables in megabytes, shared by the threads, 0 for no limit.
+   * With a limit the pairs are counted and ranked a tile of attributes at a time, for data too wide
+   * to hold all tables at once.
+   */
+  public void setMemoryBudget(int memoryBudget) {
+    if (memoryBudget < 0) {
+      throw new IllegalArgumentException("Memory budget must not be negative: " + memoryBudget);
+    }
+
+    this.memoryBudget = memoryBudget;
+  }
+
+  /** Gets the memory for the contingency tables in megabytes, 0 for no limit. */
+  public int getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Sets whether the contingency tables are kept off the heap, in native memory released as soon as
+   * the tables are scored. Keeps large tables away from the garbage collector.
+   *
+   * <p>The off-heap tables are built on the Foreign Function &amp; Memory API, a preview API of
+   * Java 21: they load on Java 21 run with --enable-preview only, and not on Java 22 or later.
+   * Other settings need neither.
+   *
+   * @throws IllegalStateException if set on a JVM that cannot load the off-heap tables
+   */
+  public void setOffHeap(boolean offHeap) {
+    if (offHeap) {
+      PairwiseCounts.checkOffHeap();
+    }
+
+    this.offHeap = offHeap;
+    resetCounts();
+  }
+
+  /** Gets whether the contingency tables are kept off the heap. */
+  public boolean getOffHeap() {
+    return offHeap;
+  }
+
+  /**
+   * Sets fold-aware mode: the counts of data held by an open {@link ReferenceCounts}, such as the
+   * training folds of a cross-validation on the opened data, are derived from the reference counts
+   * by subtracting the instances the data lacks. Other data is counted as usual, as is all data
+   * when a decay factor is set.
+   *
+   * <p>The mode has no effect unless the caller opens the reference on the whole data around the
+   * evaluation:
+   *
+   * <pre>{@code
+   * try (var reference = ReferenceCounts.open(data, numThreads)) {
+   *   evaluation.crossValidateModel(bayesNet, data, 10, random);
+   * }
+   * }</pre>
+   */
+  public void setFoldAware(boolean foldAware) {
+    this.foldAware = foldAware;
+  }
+
+  /** Gets whether counts are derived from the counts of the reference data. */
+  public boolean getFoldAware() {
+    return foldAware;
+  }
+
+  /**
+   * Sets the directory of the count cache, empty for none. Counts of all pairs are kept there
+   * across runs, keyed by a fingerprint of the data, so searching the same data again skips
+   * counting. Tiles of a memory budget are not cached.
+   */
+  public void setCacheDirectory(String cacheDirectory) {
+    this.cacheDirectory = cacheDirectory == null ? "" : cacheDirectory;
+  }
+
+  /** Gets the directory of the count cache, empty for none. */
+  public String getCacheDirectory() {
+    return cacheDirectory;
+  }
+
+  /** Sets the size of the count cache in megabytes, least recently used counts are evicted. */
+  public void setCacheSize(int cacheSize) {
+    if (cacheSize < 0) {
+      throw new IllegalArgumentException("Cache size must not be negative: " + cacheSize);
+    }
+
+    this.cacheSize = cacheSize;
+  }
+
+  /** Gets the size of the count cache in megabytes. */
+  public int getCacheSize() {
+    return cacheSize;
+  }
+
+  /**
+   * Sets the wall-clock budget of a search in seconds, 0 for none, its clock started once the
+   * progress of the search is registered. Out of budget, the search stops and keeps the network
+   * built so far: out while counting, the instances counted so far are scored and ranked in full,
+   * so the network has arcs unless no instance was counted; out while scoring or ranking, the
+   * pairs ranked so far are assembled.
+   */
+  public void setTimeBudget(int timeBudget) {
+    if (timeBudget < 0) {
+      throw new IllegalArgumentException("Time budget must not be negative: " + timeBudget);
+    }
+
+    this.timeBudget = timeBudget;
+  }
+
+  /** Gets the wall-clock budget of a search in seconds, 0 for none. */
+  public int getTimeBudget() {
+    return timeBudget;
+  }
+}
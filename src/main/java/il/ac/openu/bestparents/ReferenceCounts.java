@@ -0,0 +1,154 @@
+package il.ac.openu.bestparents;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import weka.core.Instances;
+
+/**
+ * Counts of a reference data set, from which the counts of overlapping data sets are derived.
+ *
+ * <p>Cross-validation searches each training fold, and each training fold is the whole data less
+ * its test fold. The whole data is counted and indexed by instance once when the reference is
+ * opened; the counts of a fold are then the reference counts minus the held-out instances, those
+ * the fold lacks, compared as multisets. Folds are matched to a reference by header and by holding
+ * only instances of the reference, so data of the same shape but other instances is counted as
+ * usual. So is a fold lacking more than a small share of the reference, and a fold whose tables
+ * are all counted by the SIMD kernels, which is faster than looking it up in the reference.
+ *
+ * <p>References are shared by all searches of the JVM, across the copies of a classifier that
+ * cross-validation makes, keyed by the fingerprint of the data, and released when closed:
+ *
+ * <pre>{@code
+ * try (var reference = ReferenceCounts.open(data, numThreads)) {
+ *   evaluation.crossValidateModel(bayesNet, data, 10, random);
+ * }
+ * }</pre>
+ *
+ * @author Andrew Kreimer
+ */
+public final class ReferenceCounts implements AutoCloseable {
+
+  /**
+   * Largest share of held-out instances in a derived fold, one in this many instances of the fold.
+   * Held-out instances are subtracted as fast as the fold is counted, instance by instance, and the
+   * fold is looked up in the reference on top.
+   */
+  private static final int HELD_OUT_SHARE = 4;
+
+  // open references by fingerprint, guarded by itself
+  private static final Map<String, ReferenceCounts> REFERENCES = new HashMap<>();
+
+  private final String fingerprint;
+  private final Instances header;
+  private final NominalColumns.RowIndex index;
+  private final PairwiseCounts pairwiseCounts;
+
+  // number of times opened and not closed yet
+  private int numOpen;
+
+  private ReferenceCounts(
+      String fingerprint,
+      Instances header,
+      NominalColumns.RowIndex index,
+      PairwiseCounts pairwiseCounts) {
+    this.fingerprint = fingerprint;
+    this.header = header;
+    this.index = index;
+    this.pairwiseCounts = pairwiseCounts;
+  }
+
+  /**
+   * Opens the reference of a data set, counting and indexing it unless it is open already.
+   *
+   * @param instances the whole data, e.g. of a cross-validation
+   * @param numThreads the number of threads counting in parallel
+   * @return the reference, to be closed once the searches on its folds are done
+   */
+  public static ReferenceCounts open(Instances instances, int numThreads) {
+    var distinct = NominalColumns.encode(instances).compress();
+    var fingerprint = CountCache.fingerprint(instances, distinct, 1);
+
+    synchronized (REFERENCES) {
+      var reference = REFERENCES.get(fingerprint);
+
+      if (reference == null) {
+        var pairwiseCounts =
+            PairwiseCounts.count(distinct, numThreads, PairwiseCounts.DEFAULT_BLOCK_SIZE);
+        reference =
+            new ReferenceCounts(
+                fingerprint, new Instances(instances, 0), distinct.index(), pairwiseCounts);
+        REFERENCES.put(fingerprint, reference);
+      }
+
+      reference.numOpen++;
+
+      return reference;
+    }
+  }
+
+  /**
+   * Counts instances from the counts of an open reference holding all of them.
+   *
+   * @param instances the data, only its header is used
+   * @param columns the encoded instances to count
+   * @param offHeap whether the tables are kept off the heap, to be closed by the caller
+   * @param numThreads the number of threads counting in parallel
+   * @param blockSize the number of instances decoded at once by each thread
+   * @return the counts, not decayed, null if no open reference holds the instances and lacks a
+   *     small share of them at most, or if the instances are counted faster by the SIMD kernels
+   */
+  static PairwiseCounts count(
+      Instances instances, NominalColumns columns, boolean offHeap, int numThreads, int blockSize) {
+    if (PairwiseCounts.isVectorCounted(columns)) {
+      return null;
+    }
+
+    var numInstances = 0L;
+
+    for (var n = 0; n < columns.numInstances(); n++) {
+      numInstances += columns.multiplicity(n);
+    }
+
+    List<ReferenceCounts> references;
+
+    // derived outside the lock, the reference tables are on the heap and outlive a close
+    synchronized (REFERENCES) {
+      references = new ArrayList<>(REFERENCES.values());
+    }
+
+    for (var reference : references) {
+      var numHeldOut = reference.pairwiseCounts.numInstances() - numInstances;
+
+      // checked before the lookup, counting the fold is faster than subtracting many instances
+      if (!reference.header.equalHeaders(instances)
+          || numHeldOut < 0
+          || numHeldOut > numInstances / HELD_OUT_SHARE) {
+        continue;
+      }
+
+      // one by one, so low-cardinality tables subtract them by intersecting bitsets
+      var heldOut = reference.index.complement(columns);
+
+      if (heldOut != null) {
+        var pairwiseCounts = PairwiseCounts.copyOf(reference.pairwiseCounts, offHeap);
+        pairwiseCounts.remove(heldOut, numThreads, blockSize);
+        return pairwiseCounts;
+      }
+    }
+
+    return null;
+  }
+
+  /** Closes the reference, releasing its counts once closed as many times as opened. */
+  @Override
+  public void close() {
+    synchronized (REFERENCES) {
+      if (numOpen > 0 && --numOpen == 0) {
+        REFERENCES.remove(fingerprint);
+        pairwiseCounts.close();
+      }
+    }
+  }
+}
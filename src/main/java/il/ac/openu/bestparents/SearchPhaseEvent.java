@@ -0,0 +1,74 @@
+package il.ac.openu.bestparents;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder event of a phase of a pairwise search.
+ *
+ * <p>Phases are allocate (the tables of a count, emitted by each thread counting), count, score,
+ * rank and assemble. The event is enabled by default in a recording, e.g. started with
+ * -XX:StartFlightRecording, and costs nothing when no recording is on: fields are only computed for
+ * enabled events.
+ *
+ * @author Andrew Kreimer
+ */
+@Name("il.ac.openu.bestparents.SearchPhase")
+@Label("Search Phase")
+@Category("Best Parents")
+@Description("A phase of a pairwise search")
+// fields are read by the recorder
+@SuppressFBWarnings("URF_UNREAD_FIELD")
+final class SearchPhaseEvent extends Event {
+
+  @Label("Search")
+  @Description("Simple name of the search class, null for tables allocated while counting")
+  String search;
+
+  @Label("Phase")
+  String phase;
+
+  @Label("Attributes")
+  int numAttributes;
+
+  @Label("Instances")
+  long numInstances;
+
+  @Label("Table Bytes")
+  @DataAmount
+  long tableBytes;
+
+  @Label("Pairs Scored")
+  long numPairs;
+
+  @Label("Arcs Added")
+  int numArcs;
+
+  /**
+   * Begins an event of a phase.
+   *
+   * @param search the search, null for tables allocated while counting
+   * @param phase the phase
+   * @param numAttributes the number of attributes
+   * @param numInstances the number of instances
+   * @return the event, to be committed by the caller
+   */
+  static SearchPhaseEvent begin(Object search, String phase, int numAttributes, long numInstances) {
+    var event = new SearchPhaseEvent();
+
+    if (event.isEnabled()) {
+      event.search = search == null ? null : search.getClass().getSimpleName();
+      event.phase = phase;
+      event.numAttributes = numAttributes;
+      event.numInstances = numInstances;
+      event.begin();
+    }
+
+    return event;
+  }
+}
@@ -0,0 +1,141 @@
+package il.ac.openu.bestparents;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Progress of a pairwise search, read and cancelled from other threads, e.g. over JMX.
+ *
+ * <p>The search polls {@link #isStopped()} between blocks of instances while counting, and between
+ * rows of pairs while scoring and ranking, so it stops within a block or a row. Stopped while
+ * counting, it scores and ranks the instances counted so far in full. The network is then
+ * assembled in full from the pairs ranked so far.
+ *
+ * @author Andrew Kreimer
+ */
+public final class SearchProgress implements SearchProgressMXBean {
+
+  private static final Logger LOGGER = Logger.getLogger(SearchProgress.class.getName());
+
+  private static final AtomicLong SEQUENCE = new AtomicLong();
+
+  private final String search;
+  // the clock starts once registered, see start()
+  private volatile long start = System.nanoTime();
+
+  // no deadline if zero
+  private final long budgetNanos;
+
+  private volatile String phase = "count";
+  private volatile boolean cancelled;
+  private final AtomicLong pairsCounted = new AtomicLong();
+  private final AtomicLong pairsScored = new AtomicLong();
+  private final AtomicLong arcsAdded = new AtomicLong();
+
+  /**
+   * Starts the progress of a search.
+   *
+   * @param search the simple name of the search class
+   * @param timeBudget the wall-clock budget of the search in seconds, 0 for none
+   */
+  SearchProgress(String search, int timeBudget) {
+    this.search = search;
+    budgetNanos = timeBudget * 1_000_000_000L;
+  }
+
+  /** Registers this progress with the platform MBean server, null if it cannot be registered. */
+  ObjectName register() {
+    try {
+      var name =
+          new ObjectName(
+              "il.ac.openu.bestparents:type=SearchProgress,name="
+                  + search
+                  + "-"
+                  + SEQUENCE.incrementAndGet());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      return name;
+    } catch (JMException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Cannot register search progress of: " + search);
+      return null;
+    }
+  }
+
+  /**
+   * Starts the clock of the time budget, e.g. after registering, whose first call on a JVM takes a
+   * share of a small budget.
+   */
+  void start() {
+    start = System.nanoTime();
+  }
+
+  /** Unregisters a name returned by {@link #register()}. */
+  static void unregister(ObjectName name) {
+    if (name != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      } catch (JMException e) {
+        LOGGER.log(Level.WARNING, e, () -> "Cannot unregister search progress: " + name);
+      }
+    }
+  }
+
+  void setPhase(String phase) {
+    this.phase = phase;
+  }
+
+  void addPairsCounted(long numPairs) {
+    pairsCounted.addAndGet(numPairs);
+  }
+
+  void addPairsScored(long numPairs) {
+    pairsScored.addAndGet(numPairs);
+  }
+
+  void addArcs(long numArcs) {
+    arcsAdded.addAndGet(numArcs);
+  }
+
+  @Override
+  public String getSearch() {
+    return search;
+  }
+
+  @Override
+  public String getPhase() {
+    return phase;
+  }
+
+  @Override
+  public long getPairsCounted() {
+    return pairsCounted.get();
+  }
+
+  @Override
+  public long getPairsScored() {
+    return pairsScored.get();
+  }
+
+  @Override
+  public long getArcsAdded() {
+    return arcsAdded.get();
+  }
+
+  @Override
+  public long getElapsedMillis() {
+    return (System.nanoTime() - start) / 1_000_000;
+  }
+
+  @Override
+  public boolean isStopped() {
+    return cancelled || (budgetNanos > 0 && System.nanoTime() - start > budgetNanos);
+  }
+
+  @Override
+  public void cancel() {
+    cancelled = true;
+  }
+}
@@ -0,0 +1,34 @@
+package il.ac.openu.bestparents;
+
+/**
+ * Management interface of the progress of a pairwise search, registered under
+ * il.ac.openu.bestparents:type=SearchProgress while the search runs.
+ *
+ * @author Andrew Kreimer
+ */
+public interface SearchProgressMXBean {
+
+  /** Gets the simple name of the search class. */
+  String getSearch();
+
+  /** Gets the current phase: count, score, rank, assemble or done. */
+  String getPhase();
+
+  /** Gets the number of attribute pairs counted so far. */
+  long getPairsCounted();
+
+  /** Gets the number of attribute pairs scored so far. */
+  long getPairsScored();
+
+  /** Gets the number of arcs added so far, updated as each arc is added. */
+  long getArcsAdded();
+
+  /** Gets the time since the search started in milliseconds. */
+  long getElapsedMillis();
+
+  /** Checks whether the search stops early, cancelled or out of its time budget. */
+  boolean isStopped();
+
+  /** Stops the search early, keeping the network built so far. */
+  void cancel();
+}
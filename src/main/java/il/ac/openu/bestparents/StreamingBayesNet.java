@@ -0,0 +1,60 @@
+package il.ac.openu.bestparents;
+
+import weka.classifiers.bayes.BayesNet;
+import weka.core.converters.Loader;
+
+/**
+ * Builds a Bayesian network from data read one instance at a time, for data too large for the heap.
+ *
+ * @author Andrew Kreimer
+ */
+public final class StreamingBayesNet {
+
+  /**
+   * Builds a network with a pairwise search in two passes over a loader: the first pass counts the
+   * pairs and the structure is searched on the counts, the second pass estimates the conditional
+   * probability tables instance by instance. Only the counts are held in memory.
+   *
+   * <p>Unlike {@link BayesNet#buildClassifier(weka.core.Instances)} missing values are not replaced
+   * by the modes of the data, which is never held; the pairwise counts put them into the first
+   * value of their attribute.
+   *
+   * @param bayesNet the network, its search algorithm a {@link PairwiseSearchAlgorithm}
+   * @param loader the loader of nominal data, able to reset for the second pass, e.g. from a file;
+   *     the last attribute is the class unless the structure sets one
+   * @throws Exception if the loader or the network fails
+   */
+  public static void buildClassifier(BayesNet bayesNet, Loader loader) throws Exception {
+    if (!(bayesNet.getSearchAlgorithm() instanceof PairwiseSearchAlgorithm search)) {
+      throw new IllegalArgumentException(
+          "Not a pairwise search: " + bayesNet.getSearchAlgorithm().getClass().getName());
+    }
+
+    var header = loader.getStructure();
+
+    if (header.classIndex() < 0) {
+      header.setClassIndex(header.numAttributes() - 1);
+    }
+
+    // first pass, the structure, built on the header with the counts of the data
+    try (var pairwiseCounts = search.count(loader)) {
+      search.useCounts(pairwiseCounts);
+      bayesNet.buildClassifier(header);
+    } finally {
+      search.useCounts(null);
+    }
+
+    // second pass, the conditional probability tables
+    loader.reset();
+    var structure = loader.getStructure();
+    structure.setClassIndex(header.classIndex());
+
+    for (var instance = loader.getNextInstance(structure);
+        instance != null;
+        instance = loader.getNextInstance(structure)) {
+      bayesNet.updateClassifier(instance);
+    }
+  }
+
+  private StreamingBayesNet() {}
+}
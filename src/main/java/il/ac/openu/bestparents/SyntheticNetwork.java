@@ -0,0 +1,318 @@
+package il.ac.openu.bestparents;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import weka.classifiers.bayes.BayesNet;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+/**
+ * A random network of nominal attributes with known structure, sampled to data for scaling and
+ * accuracy tests.
+ *
+ * <p>The class is the last attribute, a root and a parent of every other attribute, as in the
+ * networks WEKA searches from naive Bayes by default. The other attributes are ordered at random;
+ * each one takes up to the max in-degree parents more among the attributes before it, and a
+ * conditional probability table whose rows are drawn uniformly from the simplex. Searches are
+ * compared against the true structure by {@link #structuralHammingDistance(BayesNet)}.
+ *
+ * @author Andrew Kreimer
+ */
+public final class SyntheticNetwork {
+
+  private final Instances header;
+
+  /** Attributes in sampling order, parents before children. */
+  private final int[] order;
+
+  private final int[][] parents;
+
+  /** For each attribute, one row of value probabilities for each instantiation of its parents. */
+  private final double[][] tables;
+
+  private SyntheticNetwork(Instances header, int[] order, int[][] parents, double[][] tables) {
+    this.header = header;
+    this.order = order;
+    this.parents = parents;
+    this.tables = tables;
+  }
+
+  /**
+   * Generates a random network.
+   *
+   * @param numAttributes the number of attributes, the class included
+   * @param maxInDegree the max number of parents of an attribute besides the class
+   * @param arity the number of values of each attribute
+   * @param seed the seed of the random generator
+   * @return the network
+   */
+  public static SyntheticNetwork random(int numAttributes, int maxInDegree, int arity, long seed) {
+    if (numAttributes < 1 || maxInDegree < 0 || arity < 2) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Invalid network: %s attributes, in-degree %s, arity %s",
+              numAttributes, maxInDegree, arity));
+    }
+
+    // largest table, of an attribute with the class and max in-degree other parents
+    var maxTableSize = (long) arity;
+
+    for (var k = 0; k <= Math.min(maxInDegree, numAttributes - 2); k++) {
+      maxTableSize = Math.multiplyExact(maxTableSize, arity);
+    }
+
+    if (maxTableSize > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Probability tables exceed the maximal array size: in-degree %s, arity %s",
+              maxInDegree, arity));
+    }
+
+    var random = new Random(seed);
+    var values = new ArrayList<String>(arity);
+
+    for (var v = 0; v < arity; v++) {
+      values.add("v" + v);
+    }
+
+    var attributes = new ArrayList<Attribute>(numAttributes);
+
+    for (var i = 0; i < numAttributes; i++) {
+      attributes.add(new Attribute("a" + i, values));
+    }
+
+    var header = new Instances("synthetic", attributes, 0);
+    header.setClassIndex(numAttributes - 1);
+
+    // topological order, the class first and the others at random, by Fisher-Yates
+    var order = new int[numAttributes];
+    order[0] = numAttributes - 1;
+
+    for (var i = 1; i < numAttributes; i++) {
+      order[i] = i - 1;
+    }
+
+    for (var i = numAttributes - 1; i > 1; i--) {
+      var k = 1 + random.nextInt(i);
+      var swap = order[i];
+      order[i] = order[k];
+      order[k] = swap;
+    }
+
+    var parents = new int[numAttributes][];
+    var tables = new double[numAttributes][];
+
+    parents[numAttributes - 1] = new int[0];
+    tables[numAttributes - 1] = randomTable(random, 1, arity);
+
+    for (var p = 1; p < numAttributes; p++) {
+      // the class, then distinct earlier attributes, by a partial Fisher-Yates over the order
+      // prefix
+      var earlier = Arrays.copyOf(order, p);
+      var numParents = 1 + Math.min(p - 1, random.nextInt(maxInDegree + 1));
+
+      for (var k = 1; k < numParents; k++) {
+        var pick = k + random.nextInt(p - k);
+        var swap = earlier[k];
+        earlier[k] = earlier[pick];
+        earlier[pick] = swap;
+      }
+
+      var numRows = 1;
+
+      for (var k = 0; k < numParents; k++) {
+        numRows = Math.multiplyExact(numRows, arity);
+      }
+
+      var attribute = order[p];
+      parents[attribute] = Arrays.copyOf(earlier, numParents);
+      tables[attribute] = randomTable(random, numRows, arity);
+    }
+
+    return new SyntheticNetwork(header, order, parents, tables);
+  }
+
+  /** Draws rows uniformly from the simplex, normalizing exponential variates. */
+  private static double[] randomTable(Random random, int numRows, int arity) {
+    var table = new double[Math.multiplyExact(numRows, arity)];
+
+    for (var row = 0; row < numRows; row++) {
+      var sum = 0.0;
+
+      for (var v = 0; v < arity; v++) {
+        table[row * arity + v] = -Math.log(1 - random.nextDouble());
+        sum += table[row * arity + v];
+      }
+
+      for (var v = 0; v < arity; v++) {
+        table[row * arity + v] /= sum;
+      }
+    }
+
+    return table;
+  }
+
+  /** Gets the header of the sampled data, without instances. */
+  public Instances header() {
+    return new Instances(header, 0);
+  }
+
+  /** Gets the parents of an attribute. */
+  public int[] parents(int attribute) {
+    return parents[attribute].clone();
+  }
+
+  /** Whether the network has an arc from parent to child. */
+  public boolean hasArc(int parent, int child) {
+    for (var p : parents[child]) {
+      if (p == parent) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /** Samples one instance into values, ancestors first. */
+  private void sample(Random random, double[] values) {
+    var arity = header.attribute(0).numValues();
+
+    for (var attribute : order) {
+      var row = 0;
+
+      for (var p : parents[attribute]) {
+        row = row * arity + (int) values[p];
+      }
+
+      var u = random.nextDouble();
+      var v = 0;
+      var cumulative = tables[attribute][row * arity];
+
+      while (u >= cumulative && v < arity - 1) {
+        v++;
+        cumulative += tables[attribute][row * arity + v];
+      }
+
+      values[attribute] = v;
+    }
+  }
+
+  /**
+   * Samples instances.
+   *
+   * @param numInstances the number of instances
+   * @param seed the seed of the random generator
+   * @return the data, the class being the last attribute
+   */
+  public Instances sample(int numInstances, long seed) {
+    var random = new Random(seed);
+    var instances = new Instances(header, numInstances);
+
+    for (var n = 0; n < numInstances; n++) {
+      var values = new double[header.numAttributes()];
+      sample(random, values);
+      instances.add(new DenseInstance(1, values));
+    }
+
+    return instances;
+  }
+
+  /**
+   * Samples instances to ARFF one at a time, without keeping them in memory.
+   *
+   * @param numInstances the number of instances
+   * @param seed the seed of the random generator
+   * @param writer the ARFF output, not closed
+   * @throws IOException if the output cannot be written
+   */
+  public void write(int numInstances, long seed, Writer writer) throws IOException {
+    var random = new Random(seed);
+    var values = new double[header.numAttributes()];
+    var line = new StringBuilder();
+
+    // an empty data set prints its header up to @data
+    writer.write(header.toString());
+    writer.write('\n');
+
+    for (var n = 0; n < numInstances; n++) {
+      sample(random, values);
+      line.setLength(0);
+
+      for (var i = 0; i < values.length; i++) {
+        if (i > 0) {
+          line.append(',');
+        }
+
+        line.append(header.attribute(i).value((int) values[i]));
+      }
+
+      writer.write(line.append('\n').toString());
+    }
+  }
+
+  /**
+   * Counts the arcs to add, delete or reverse to turn the structure of a network into this one. The
+   * arcs from the class count like any other, so a network searched without naive Bayes
+   * initialization has to find them.
+   *
+   * @param bayesNet a network over the same attributes, e.g. found by a search on sampled data
+   * @return the structural Hamming distance, 0 for the same structure
+   */
+  public int structuralHammingDistance(BayesNet bayesNet) {
+    if (bayesNet.getNrOfNodes() != parents.length) {
+      throw new IllegalArgumentException(
+          "Network has " + bayesNet.getNrOfNodes() + " nodes, not " + parents.length);
+    }
+
+    var distance = 0;
+
+    for (var i = 0; i < parents.length; i++) {
+      for (var j = 0; j < i; j++) {
+        var trueArc = hasArc(j, i) ? 1 : hasArc(i, j) ? -1 : 0;
+        var foundArc =
+            bayesNet.getParentSet(i).contains(j)
+                ? 1
+                : bayesNet.getParentSet(j).contains(i) ? -1 : 0;
+
+        if (trueArc != foundArc) {
+          distance++;
+        }
+      }
+    }
+
+    return distance;
+  }
+
+  /**
+   * Writes sampled data of a random network to an ARFF file.
+   *
+   * @param args the number of attributes, the max in-degree, the arity, the number of instances,
+   *     the seed and the output file
+   * @throws IOException if the file cannot be written
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 6) {
+      throw new IllegalArgumentException(
+          "Usage: SyntheticNetwork <attributes> <in-degree> <arity> <instances> <seed> <output"
+              + " file>");
+    }
+
+    var network =
+        random(
+            Integer.parseInt(args[0]),
+            Integer.parseInt(args[1]),
+            Integer.parseInt(args[2]),
+            Long.parseLong(args[4]));
+
+    try (var writer = Files.newBufferedWriter(Path.of(args[5]), StandardCharsets.UTF_8)) {
+      network.write(Integer.parseInt(args[3]), Long.parseLong(args[4]), writer);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package il.ac.openu.bestparents;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels on the Vector API, giving the same results as their scalar versions.
+ *
+ * <p>This is the only class using the incubating jdk.incubator.vector module, and it is loaded only
+ * if the JVM runs with --add-modules jdk.incubator.vector, see {@link #ENABLED}. Otherwise the
+ * scalar versions are used.
+ *
+ * @author Andrew Kreimer
+ */
+final class VectorKernels {
+
+  /**
+   * Whether the kernels are used: the module is enabled and the system property bestparents.vector
+   * is not false.
+   */
+  static final boolean ENABLED =
+      ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+          && Boolean.parseBoolean(System.getProperty("bestparents.vector", "true"));
+
+  private VectorKernels() {}
+
+  /**
+   * Sets the bitsets of the instances taking each value but the last, and counts the instances
+   * taking each value.
+   *
+   * @param values the values of the instances
+   * @param length the number of instances
+   * @param bitsets a bitset for each value but the last
+   * @param valueCounts the number of instances taking each value, filled
+   */
+  static void setBitsets(int[] values, int length, long[][] bitsets, int[] valueCounts) {
+    Lanes.setBitsets(values, length, bitsets, valueCounts);
+  }
+
+  /** Counts the bits set in both bitsets, over the first length words. */
+  static int intersectionCount(long[] first, long[] second, int length) {
+    return Lanes.intersectionCount(first, second, length);
+  }
+
+  /** Holds the vector code, so that {@link #ENABLED} can be read without the module. */
+  private static final class Lanes {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+
+    static void setBitsets(int[] values, int length, long[][] bitsets, int[] valueCounts) {
+      var numFullWords = length / Long.SIZE;
+      var numCounted = 0;
+
+      for (var value = 0; value < bitsets.length; value++) {
+        var bitset = bitsets[value];
+        var count = 0;
+
+        // a word at a time, comparing a vector of values at once
+        for (var w = 0; w < numFullWords; w++) {
+          var word = 0L;
+
+          for (var k = 0; k < Long.SIZE; k += INT_SPECIES.length()) {
+            var lanes = IntVector.fromArray(INT_SPECIES, values, w * Long.SIZE + k);
+            word |= lanes.eq(value).toLong() << k;
+          }
+
+          bitset[w] = word;
+          count += Long.bitCount(word);
+        }
+
+        if (numFullWords * Long.SIZE < length) {
+          var word = 0L;
+
+          for (var n = numFullWords * Long.SIZE; n < length; n++) {
+            word |= values[n] == value ? 1L << n : 0;
+          }
+
+          bitset[numFullWords] = word;
+          count += Long.bitCount(word);
+        }
+
+        valueCounts[value] = count;
+        numCounted += count;
+      }
+
+      valueCounts[bitsets.length] = length - numCounted;
+    }
+
+    static int intersectionCount(long[] first, long[] second, int length) {
+      var sums = LongVector.zero(SPECIES);
+      var bound = SPECIES.loopBound(length);
+      var w = 0;
+
+      for (; w < bound; w += SPECIES.length()) {
+        var intersection =
+            LongVector.fromArray(SPECIES, first, w).and(LongVector.fromArray(SPECIES, second, w));
+        sums = sums.add(intersection.lanewise(VectorOperators.BIT_COUNT));
+      }
+
+      var count = sums.reduceLanes(VectorOperators.ADD);
+
+      for (; w < length; w++) {
+        count += Long.bitCount(first[w] & second[w]);
+      }
+
+      return (int) count;
+    }
+  }
+}